@@ -0,0 +1,216 @@
+/**
+ * @author Kostiantyn Feniuk
+ */
+
+package com.apokalist.telegram_mini;
+
+import com.rabbitmq.client.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Headless archive node, started with its own main (no JavaFX).
+ *
+ * Consumes every room from chat_exchange_v2 into an ArchiveStore and answers
+ * paged history requests. Clients publish to RPC_QUEUE with replyTo set to
+ * amq.rabbitmq.reply-to (direct reply-to), so replies need no reply queue.
+ *
+ * Request headers: room, and either before or after (archive id), limit.
+ * Reply body: ArchivedMessage.writePage, oldest first.
+ *
+ * Redeliveries are deduped by the highest seq stored per room and sender.
+ * At most PREFETCH deliveries are unacked, so after a restart the last
+ * PREFETCH records of a room cover everything the broker can redeliver;
+ * high-water marks are rebuilt from them on the first message of a room.
+ */
+public class ArchiveNode {
+    public static final String ARCHIVE_QUEUE = "chat_archive"; // All rooms, durable
+    public static final String RPC_QUEUE = "chat_archive_rpc"; // History requests
+
+    // Request headers
+    public static final String ROOM = "room";
+    public static final String BEFORE = "before";
+    public static final String AFTER = "after";
+    public static final String LIMIT = "limit";
+
+    private final File directory; // Store directory
+    private final ArchiveStore store; // On-disk store
+    private static final int PREFETCH = 500; // Unacked deliveries, at most ArchiveStore.MAX_PAGE
+    private static final int MAX_SENDERS = 4096; // High-water marks kept, least recently seen go first
+
+    private final Set<String> seededRooms = new HashSet<>(); // Rooms with marks rebuilt from the store
+    private final Map<String, Long> highWater = new LinkedHashMap<>(16, 0.75f, true) { // room + sender -> seq
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+            return size() > MAX_SENDERS; // Senders are per session (nick@millis)
+        }
+    };
+    private Connection connection; // RabbitMQ connection
+    private Channel channel; // RabbitMQ channel
+
+    /**
+     * Constructor.
+     * @param directory Store directory
+     */
+    public ArchiveNode(File directory) {
+        this.directory = directory;
+        this.store = new ArchiveStore(directory);
+    }
+
+    /**
+     * Connects, starts consuming and blocks until the JVM shuts down.
+     */
+    public void run() {
+        CountDownLatch stopped = new CountDownLatch(1);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            close();
+            stopped.countDown();
+        }));
+
+        try {
+            ConnectionFactory factory = new ConnectionFactory();
+            factory.setHost("localhost");
+            factory.setPort(5672);
+            connection = factory.newConnection();
+            channel = connection.createChannel();
+            channel.basicQos(PREFETCH);
+
+            channel.exchangeDeclare("chat_exchange_v2", "topic", true);
+            channel.queueDeclare(ARCHIVE_QUEUE, true, false, false, null);
+            channel.queueBind(ARCHIVE_QUEUE, "chat_exchange_v2", "#"); // Every room
+            // Auto-delete: gone when the last node stops, so client requests are returned (mandatory)
+            channel.queueDeclare(RPC_QUEUE, false, false, true, null);
+
+            DeliverCallback archiveCallback = (consumerTag, delivery) -> {
+                archive(delivery.getProperties(), delivery.getBody());
+                // Ack only after the write, redelivery is deduped
+                channel.basicAck(delivery.getEnvelope().getDeliveryTag(), false);
+            };
+
+            DeliverCallback rpcCallback = (consumerTag, delivery) -> answer(delivery.getProperties());
+
+            channel.basicConsume(ARCHIVE_QUEUE, false, archiveCallback, tag -> {});
+            channel.basicConsume(RPC_QUEUE, true, rpcCallback, tag -> {});
+            System.out.println("Archive node running, store: " + directory.getAbsolutePath());
+
+            stopped.await();
+        } catch (IOException | TimeoutException e) {
+            e.printStackTrace();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Stores a chat message. Other classes are transient and not archived.
+     * @param props Delivery properties
+     * @param body Message body
+     */
+    private void archive(AMQP.BasicProperties props, byte[] body) throws IOException {
+        if (MessageClass.of(props) != MessageClass.CHAT) return;
+        Envelope envelope = Envelope.read(props);
+        if (envelope == null || envelope.getRoom() == null) return; // Older clients
+
+        if (envelope.getSeq() > 0) {
+            if (seededRooms.add(envelope.getRoom())) {
+                seed(envelope.getRoom());
+            }
+            String key = envelope.getRoom() + '\0' + envelope.getSender();
+            Long stored = highWater.get(key);
+            if (stored != null && envelope.getSeq() <= stored) return; // Redelivery
+            highWater.put(key, envelope.getSeq());
+        }
+        store.append(MessageClass.CHAT, envelope, body);
+    }
+
+    /**
+     * Rebuilds high-water marks of a room from its latest records.
+     * @param room Room name
+     */
+    private void seed(String room) throws IOException {
+        for (ArchivedMessage archived : store.before(room, Long.MAX_VALUE, PREFETCH)) {
+            Envelope envelope = archived.getEnvelope();
+            if (envelope.getSeq() > 0) {
+                highWater.merge(room + '\0' + envelope.getSender(), envelope.getSeq(), Math::max);
+            }
+        }
+    }
+
+    /**
+     * Answers a history request.
+     * @param props Request properties
+     */
+    private void answer(AMQP.BasicProperties props) {
+        Map<String, Object> headers = props.getHeaders();
+        if (props.getReplyTo() == null || headers == null || headers.get(ROOM) == null) return;
+
+        try {
+            String room = headers.get(ROOM).toString();
+            int limit = headers.get(LIMIT) instanceof Number ? ((Number) headers.get(LIMIT)).intValue() : 50;
+            List<ArchivedMessage> page;
+            if (headers.get(AFTER) instanceof Number) {
+                page = store.after(room, ((Number) headers.get(AFTER)).longValue(), limit);
+            } else {
+                long before = headers.get(BEFORE) instanceof Number ? ((Number) headers.get(BEFORE)).longValue() : Long.MAX_VALUE;
+                page = store.before(room, before, limit);
+            }
+
+            AMQP.BasicProperties reply = new AMQP.BasicProperties.Builder()
+                    .correlationId(props.getCorrelationId())
+                    .build();
+            channel.basicPublish("", props.getReplyTo(), reply, ArchivedMessage.writePage(page));
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Closes connection and store.
+     */
+    public void close() {
+        try {
+            if (channel != null && channel.isOpen())
+                channel.close();
+
+            if (connection != null && connection.isOpen())
+                connection.close();
+
+        } catch (IOException | TimeoutException e) {
+            e.printStackTrace();
+        }
+        store.close();
+    }
+
+    /**
+     * Runs the archive node.
+     * Store directory: -Dchat.archive.dir (default "archive").
+     * @param args Unused
+     */
+    public static void main(String[] args) {
+        new ArchiveNode(new File(System.getProperty("chat.archive.dir", "archive"))).run();
+    }
+
+    /**
+     * Builds request headers for a history page.
+     * @param room Room name
+     * @param beforeId Exclusive upper id, Long.MAX_VALUE for latest
+     * @param limit Page size
+     * @return Headers
+     */
+    public static Map<String, Object> beforeRequest(String room, long beforeId, int limit) {
+        Map<String, Object> headers = new HashMap<>();
+        headers.put(ROOM, room);
+        headers.put(BEFORE, beforeId);
+        headers.put(LIMIT, limit);
+        return headers;
+    }
+}
@@ -0,0 +1,173 @@
+/**
+ * @author Kostiantyn Feniuk
+ */
+
+package com.apokalist.telegram_mini;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * On-disk message store of the archive node.
+ *
+ * Per room two files:
+ *  room.log - append-only records (ArchivedMessage layout)
+ *  room.idx - fixed 8-byte offsets into room.log, entry N-1 is archive id N
+ * so any page is one index read plus log reads. The index is written after
+ * the record, so only indexed records are read: a record orphaned by a
+ * crash between the two writes is never returned. Reads never create
+ * files, a room exists once something was appended to it.
+ */
+public class ArchiveStore {
+    public static final int MAX_PAGE = 500; // Largest page served
+
+    private final File directory; // Store directory
+    private final Map<String, RoomFiles> rooms = new HashMap<>(); // Open files per room
+
+    /**
+     * Open files of one room.
+     */
+    private static class RoomFiles {
+        final RandomAccessFile log;
+        final RandomAccessFile index;
+        long lastId; // Highest archive id
+
+        RoomFiles(RandomAccessFile log, RandomAccessFile index) throws IOException {
+            this.log = log;
+            this.index = index;
+            this.lastId = index.length() / 8;
+        }
+    }
+
+    /**
+     * Constructor.
+     * @param directory Store directory, created if missing
+     */
+    public ArchiveStore(File directory) {
+        this.directory = directory;
+        if (!directory.exists() && !directory.mkdirs()) {
+            System.err.println("Failed to create archive directory: " + directory);
+        }
+    }
+
+    /**
+     * Appends a message, assigns next archive id of the room.
+     * @param messageClass Message class
+     * @param envelope Envelope, must have a room
+     * @param body Encoded message
+     * @return Archive id
+     * @throws IOException If writing fails
+     */
+    public synchronized long append(MessageClass messageClass, Envelope envelope, byte[] body) throws IOException {
+        RoomFiles files = open(envelope.getRoom(), true);
+        long id = files.lastId + 1;
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(body.length + 64);
+        new ArchivedMessage(id, messageClass, envelope, body).write(new DataOutputStream(bytes));
+
+        long offset = files.log.length();
+        files.log.seek(offset);
+        files.log.write(bytes.toByteArray());
+        files.index.seek((id - 1) * 8);
+        files.index.writeLong(offset);
+        files.lastId = id;
+        return id;
+    }
+
+    /**
+     * Gets messages before an id, oldest first.
+     * @param room Room name
+     * @param beforeId Exclusive upper id, Long.MAX_VALUE for latest
+     * @param limit Page size
+     * @return Messages
+     * @throws IOException If reading fails
+     */
+    public synchronized List<ArchivedMessage> before(String room, long beforeId, int limit) throws IOException {
+        RoomFiles files = open(room, false);
+        if (files == null) return new ArrayList<>(); // Unknown room
+        long to = Math.min(beforeId - 1, files.lastId);
+        long from = Math.max(1, to - pageSize(limit) + 1);
+        return read(files, from, to);
+    }
+
+    /**
+     * Gets messages after an id, oldest first.
+     * @param room Room name
+     * @param afterId Exclusive lower id
+     * @param limit Page size
+     * @return Messages
+     * @throws IOException If reading fails
+     */
+    public synchronized List<ArchivedMessage> after(String room, long afterId, int limit) throws IOException {
+        RoomFiles files = open(room, false);
+        if (files == null) return new ArrayList<>(); // Unknown room
+        long from = Math.max(1, afterId + 1);
+        long to = Math.min(files.lastId, afterId + pageSize(limit));
+        return read(files, from, to);
+    }
+
+    /**
+     * Flushes and closes all files.
+     */
+    public synchronized void close() {
+        for (RoomFiles files : rooms.values()) {
+            try {
+                files.log.close();
+                files.index.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        rooms.clear();
+    }
+
+    private List<ArchivedMessage> read(RoomFiles files, long from, long to) throws IOException {
+        List<ArchivedMessage> page = new ArrayList<>();
+        if (from > to) return page;
+
+        // Offsets of the whole page in one read, then each record from its own offset
+        byte[] offsets = new byte[(int) (to - from + 1) * 8];
+        files.index.seek((from - 1) * 8);
+        files.index.readFully(offsets);
+        ByteBuffer index = ByteBuffer.wrap(offsets);
+        for (long id = from; id <= to; id++) {
+            long offset = index.getLong();
+            if (files.log.getFilePointer() != offset) files.log.seek(offset); // Skips orphaned records
+            page.add(ArchivedMessage.read(files.log));
+        }
+        return page;
+    }
+
+    private static int pageSize(int limit) {
+        return Math.max(1, Math.min(MAX_PAGE, limit));
+    }
+
+    /**
+     * Gets open files of a room.
+     * @param room Room name
+     * @param create true to create files of a new room
+     * @return Files, null if the room has none and create is false
+     */
+    private RoomFiles open(String room, boolean create) throws IOException {
+        RoomFiles files = rooms.get(room);
+        if (files == null) {
+            String name = URLEncoder.encode(room, StandardCharsets.UTF_8); // Safe file name
+            File log = new File(directory, name + ".log");
+            File index = new File(directory, name + ".idx");
+            if (!create && !index.exists()) return null;
+            files = new RoomFiles(new RandomAccessFile(log, "rw"), new RandomAccessFile(index, "rw"));
+            rooms.put(room, files);
+        }
+        return files;
+    }
+}
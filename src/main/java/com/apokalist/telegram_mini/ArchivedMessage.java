@@ -0,0 +1,140 @@
+/**
+ * @author Kostiantyn Feniuk
+ */
+
+package com.apokalist.telegram_mini;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Message stored by the archive node, with its per-room archive id.
+ *
+ * Same binary layout is used on disk and in RPC replies.
+ */
+public class ArchivedMessage {
+    private final long id; // Per-room archive id, starts at 1
+    private final MessageClass messageClass; // Delivery class
+    private final Envelope envelope; // Ordering info
+    private final byte[] body; // Encoded message
+
+    /**
+     * Constructor.
+     * @param id Archive id
+     * @param messageClass Message class
+     * @param envelope Envelope
+     * @param body Encoded message
+     */
+    public ArchivedMessage(long id, MessageClass messageClass, Envelope envelope, byte[] body) {
+        this.id = id;
+        this.messageClass = messageClass;
+        this.envelope = envelope;
+        this.body = body;
+    }
+
+    /**
+     * Writes message.
+     * @param out Output
+     * @throws IOException If writing fails
+     */
+    public void write(DataOutput out) throws IOException {
+        out.writeLong(id);
+        out.writeUTF(messageClass.name());
+        out.writeUTF(envelope.getSender());
+        out.writeLong(envelope.getSeq());
+        out.writeLong(envelope.getHlc());
+        out.writeUTF(envelope.getRoom());
+        out.writeInt(body.length);
+        out.write(body);
+    }
+
+    /**
+     * Reads message.
+     * @param in Input
+     * @return Message
+     * @throws IOException If reading fails
+     */
+    public static ArchivedMessage read(DataInput in) throws IOException {
+        long id = in.readLong();
+        MessageClass messageClass = MessageClass.valueOf(in.readUTF());
+        String sender = in.readUTF();
+        long seq = in.readLong();
+        long hlc = in.readLong();
+        String room = in.readUTF();
+        byte[] body = new byte[in.readInt()];
+        in.readFully(body);
+        return new ArchivedMessage(id, messageClass, new Envelope(sender, seq, hlc, room), body);
+    }
+
+    /**
+     * Encodes a page for an RPC reply.
+     * @param page Messages
+     * @return Reply body
+     * @throws IOException If writing fails
+     */
+    public static byte[] writePage(List<ArchivedMessage> page) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(page.size());
+        for (ArchivedMessage message : page) {
+            message.write(out);
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Decodes an RPC reply.
+     * @param body Reply body
+     * @return Messages
+     * @throws IOException If body is malformed
+     */
+    public static List<ArchivedMessage> readPage(byte[] body) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(body));
+        int count = in.readInt();
+        List<ArchivedMessage> page = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            page.add(read(in));
+        }
+        return page;
+    }
+
+    /**
+     * Gets archive id.
+     * @return Id
+     */
+    public long getId() {
+        return id;
+    }
+
+    /**
+     * Gets message class.
+     * @return Message class
+     */
+    public MessageClass getMessageClass() {
+        return messageClass;
+    }
+
+    /**
+     * Gets envelope.
+     * @return Envelope
+     */
+    public Envelope getEnvelope() {
+        return envelope;
+    }
+
+    /**
+     * Gets body.
+     * @return Encoded message
+     */
+    public byte[] getBody() {
+        return body;
+    }
+}
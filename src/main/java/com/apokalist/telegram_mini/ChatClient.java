@@ -12,170 +12,661 @@ channel.basicConsume(privateQueueName, true, privateCallback, tag -> {});
 package com.apokalist.telegram_mini;
 
 import com.rabbitmq.client.*;
-import javafx.application.Platform;
 
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
-import java.time.LocalTime;
-import java.time.format.DateTimeFormatter;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.LongConsumer;
+import java.util.function.Supplier;
 
 /**
  * Manages chat client connection to RabbitMQ.
+ *
+ * One connection and channel for all rooms. The open room keeps full
+ * history, other subscribed rooms run in background (see RoomState).
+ * Does not depend on JavaFX: incoming events come from messages(),
+ * sends return futures completed by publisher confirms.
+ * Private messages are consumed on their own channel with their own
+ * prefetch, so a room backlog holding the room prefetch does not block them.
  */
 public class ChatClient {
+    private static final long TYPING_INTERVAL_MS = 3000; // At most one typing event per interval
+    private static final String EXCHANGE = "chat_exchange_v2"; // Exchange for all room messages
+    private static final String DIRECT_REPLY_TO = "amq.rabbitmq.reply-to"; // Pseudo-queue for RPC replies
+    private static final int HISTORY_PAGE = 50; // Messages per archive request
+    private static final long HISTORY_TIMEOUT_MS = 2000; // Wait for archive node
+    private static final int HISTORY_PAGES_PER_LOAD = 5; // Pages to skip over when all are already loaded
+    private static final int PRIVATE_PREFETCH = 50; // Private channel, independent of room prefetch
+    private static final int PRIVATE_HISTORY_SIZE = 100; // Private messages merged into room redraws
+    private static final long REDRAW_DELAY_MS = 50; // Late arrivals within it share one redraw
+    private static final long QOS_INTERVAL_MS = 1000; // At most one qos update per interval, latest value wins
+
+    // Resync request headers
+    private static final String RESYNC_TARGET = "target";
+    private static final String RESYNC_FROM = "from";
+    private static final String RESYNC_TO = "to";
+
+    private final ConnectionFactory factory; // Broker connection settings
     private final String nickname; // User nickname
-    private final String roomName; // Room name
+    private final byte[] nicknameBytes; // Typing body, encoded once
+    private final String sessionId; // Sender id in envelopes, unique per session
+    private volatile String activeRoom; // Room shown in UI
     private Connection connection; // RabbitMQ connection
-    private Channel channel; // RabbitMQ channel
-    private String queueName; // Queue for messages
-    private ChatUI ui; // UI instance
-    private final List<String> messageHistory = new ArrayList<>(); // Message history
-    private String consumerTag; // Consumer tag
+    private Channel channel; // RabbitMQ channel, shared by all rooms, all publishes
+    private Channel privateChannel; // Private queue consumer
+    private String privateConsumerTag; // Private queue consumer tag
+    private String privateQueueName; // Queue for private messages and resync replies
+    private final MessagePublisher publisher = new MessagePublisher(this::setPrefetch); // Incoming events
+    private final ConcurrentSkipListMap<Long, CompletableFuture<Void>> confirms = new ConcurrentSkipListMap<>(); // By publish seq
+    private final Map<String, RoomState> rooms = new LinkedHashMap<>(); // Subscribed rooms
+    private final ArrayDeque<ChatMessage> privateHistory = new ArrayDeque<>(); // Last PRIVATE_HISTORY_SIZE private messages
+    private final HybridClock clock = new HybridClock(); // Ordering clock
+    private DeliverCallback roomCallback; // Shared by all room consumers
+    private final Map<String, CompletableFuture<List<ArchivedMessage>>> pendingHistory = new ConcurrentHashMap<>(); // By correlation id
+    private final ScheduledExecutorService ackExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "chat-ack");
+        thread.setDaemon(true);
+        return thread;
+    }); // Acks, qos and coalesced redraws off subscriber threads
+    private final Set<String> redrawsQueued = ConcurrentHashMap.newKeySet(); // Rooms with a redraw scheduled
+    private final AtomicBoolean qosQueued = new AtomicBoolean(); // Prefetch update scheduled
+    private volatile int appliedPrefetch; // Last channel prefetch sent to the broker
+    private volatile long lastQosMillis; // When it was sent
+    private final AckBuffer roomAcks = new AckBuffer(() -> channel); // Room deliveries
+    private final AckBuffer privateAcks = new AckBuffer(() -> privateChannel); // Private deliveries
+    private long lastTypingSent; // Last typing event time, for coalescing
 
     /**
      * Constructor, sets up client.
      * @param nickname User nickname
-     * @param roomName Room name  (ROUTING KEY)
-     * @param ui ChatUI instance
+     * @param roomName Room to open first  (ROUTING KEY)
+     */
+    public ChatClient(String nickname, String roomName) {
+        this(nickname, roomName, localFactory());
+    }
+
+    /**
+     * Constructor with connection settings.
+     * @param nickname User nickname
+     * @param roomName Room to open first (ROUTING KEY)
+     * @param factory Connection factory
      */
-    public ChatClient(String nickname, String roomName, ChatUI ui) {
+    ChatClient(String nickname, String roomName, ConnectionFactory factory) {
+        this.factory = factory;
         this.nickname = nickname;
-        this.roomName = roomName;
-        this.ui = ui;
+        this.nicknameBytes = nickname.getBytes(StandardCharsets.UTF_8);
+        this.activeRoom = roomName;
+        this.sessionId = nickname + "@" + System.currentTimeMillis();
     }
 
     /**
-     * Sets UI instance.
-     * @param ui ChatUI instance
+     * Gets incoming events. Subscribe before connect() to get everything.
+     * @return Publisher of room and private messages
      */
-    public void setUI(ChatUI ui) {
-        this.ui = ui;
+    public Flow.Publisher<ChatEvent> messages() {
+        return publisher;
     }
 
     /**
-     * Connects to RabbitMQ and sets up queues.
+     * Connection settings of a local broker.
+     * @return Factory for localhost:5672
      */
-    public void connect() {
+    private static ConnectionFactory localFactory() {
+        ConnectionFactory factory = new ConnectionFactory();
+        factory.setHost("localhost");
+        factory.setPort(5672);
+        return factory;
+    }
+
+    /**
+     * Connects to RabbitMQ, sets up private queue and opens first room.
+     * Failures are also published as ERROR events.
+     * @return true if connected and the first room is open
+     */
+    public boolean connect() {
         try {
-            ConnectionFactory factory = new ConnectionFactory();
-            factory.setHost("localhost");
-            factory.setPort(5672);
             connection = factory.newConnection();
             channel = connection.createChannel();
 
-            // Declare exchange (use unique name to avoid conflicts)
-            String exchangeName = "chat_exchange_v2";
-            channel.exchangeDeclare(exchangeName, "topic", true);
-
-            // Create DURABLE queue for EACH USER in EACH ROOM
-            // Ensures every user gets ALL messages
-            queueName = "user_" + nickname + "_room_" + roomName;
+            // After automatic recovery ask only for ranges still missing
+            if (connection instanceof Recoverable) {
+                ((Recoverable) connection).addRecoveryListener(new RecoveryListener() {
+                    @Override
+                    public void handleRecovery(Recoverable recoverable) {
+                        for (RoomState room : getRoomStates()) {
+                            for (String sender : room.getStream().sendersWithGaps()) {
+                                requestMissing(room, sender);
+                            }
+                        }
+                    }
 
+                    @Override
+                    public void handleRecoveryStarted(Recoverable recoverable) {
+                        // Publish sequence starts over on the new channel
+                        failPendingConfirms(new IOException("Connection lost before publish was confirmed"));
+                    }
+                });
+            }
 
-//            NOTE_(DO_not_forget)_____________________________________________________________
-            // Создание очереди:
-            // durable = true — очередь сохраняется при перезапуске сервера
-            // exclusive = false — доступна другим каналам
-            // autoDelete = false — не удаляется после отключения клиента
-//            _______________________________________________________________
+            // Channel-wide prefetch, follows subscriber demand (see MessagePublisher).
+            // Subscribers may have requested before connect, start from their demand
+            int prefetch = publisher.getPrefetch();
+            channel.basicQos(prefetch, true);
+            appliedPrefetch = prefetch;
+            lastQosMillis = System.currentTimeMillis();
+            if (publisher.getPrefetch() != prefetch) setPrefetch(publisher.getPrefetch()); // Changed meanwhile
+
+            // Publisher confirms complete send futures
+            channel.confirmSelect();
+            channel.addConfirmListener((seqNo, multiple) -> confirm(seqNo, multiple, null),
+                    (seqNo, multiple) -> confirm(seqNo, multiple, new IOException("Broker rejected message")));
+
+            // Unroutable history request = no archive node running, fail fast instead of waiting
+            channel.addReturnListener(returned -> {
+                String correlationId = returned.getProperties().getCorrelationId();
+                CompletableFuture<List<ArchivedMessage>> future = correlationId != null ? pendingHistory.get(correlationId) : null;
+                if (future != null) {
+                    future.completeExceptionally(new IOException("No archive node: " + returned.getReplyText()));
+                }
+            });
 
-//_________ CHANNEL.QUEUEDECLARE(STRING QUEUE, BOOLEAN DURABLE, BOOLEAN EXCLUSIVE, BOOLEAN AUTODELETE, MAP<STRING, OBJECT> ARGUMENTS)__________________|
-            channel.queueDeclare(queueName, true, false, false, null);
-            channel.queueBind(queueName, exchangeName, roomName);
+            // Declare exchange (use unique name to avoid conflicts)
+            channel.exchangeDeclare(EXCHANGE, "topic", true);
 
-            // Private message queue
-            String privateQueueName = "private_" + nickname;
+            // Private message queue, consumed on its own channel
+            privateQueueName = "private_" + nickname;
             channel.queueDeclare(privateQueueName, true, false, false, null);
-
-            // Load message history first
-            loadExistingMessages();
-
-            // Subscribe to new messages
-            DeliverCallback roomCallback = (consumerTag, delivery) -> {
-                String message = new String(delivery.getBody(), StandardCharsets.UTF_8);
-                if (!messageHistory.contains(message)) { // Avoid duplicates
-                    messageHistory.add(message);
-                    Platform.runLater(() -> {
-                        if (ui != null) ui.appendMessage(message);
-                    });
+            privateChannel = connection.createChannel();
+            privateChannel.basicQos(PRIVATE_PREFETCH);
+
+            // Subscribe to new messages, room is the routing key
+            roomCallback = (consumerTag, delivery) -> {
+                RoomState room = getRoomState(delivery.getEnvelope().getRoutingKey());
+                AMQP.BasicProperties props = delivery.getProperties();
+                MessageClass messageClass = MessageClass.of(props);
+                if (room == null) {
+                    // Left already, nothing to do
+                } else if (messageClass == MessageClass.TYPING) {
+                    // Ephemeral, never goes to history, ignored for background rooms
+                    if (room.isOpen() && !Arrays.equals(delivery.getBody(), nicknameBytes)) {
+                        publisher.publish(ChatEvent.typing(room.getName(), MessageCodec.decode(delivery.getBody())));
+                    }
+                } else if (messageClass == MessageClass.RESYNC) {
+                    answerResync(room, props); // Older clients broadcast requests to the room
+                } else if (receive(room, messageClass, props, delivery.getBody(), delivery.getEnvelope().getDeliveryTag(), false)) {
+                    return; // Acked once subscribers are done with it, so prefetch limits unconsumed messages
                 }
+                // Dedup and resync make redelivery unnecessary, so ack right away
+                channel.basicAck(delivery.getEnvelope().getDeliveryTag(), false);
             };
 
             DeliverCallback privateCallback = (consumerTag, delivery) -> {
-                String message = new String(delivery.getBody(), StandardCharsets.UTF_8);
-                messageHistory.add(message);
-                Platform.runLater(() -> {
-                    if (ui != null) ui.appendMessage(message);
-                });
+                AMQP.BasicProperties props = delivery.getProperties();
+                if (MessageClass.of(props) == MessageClass.RESYNC) {
+                    // Resync request from a room member, sent only to us
+                    Object roomName = props.getHeaders() != null ? props.getHeaders().get(Envelope.ROOM) : null;
+                    RoomState room = roomName != null ? getRoomState(roomName.toString()) : null;
+                    if (room != null) answerResync(room, props);
+                    privateChannel.basicAck(delivery.getEnvelope().getDeliveryTag(), false);
+                    return;
+                }
+
+                Envelope envelope = Envelope.read(props);
+                if (envelope != null && envelope.getRoom() != null) {
+                    // Resync reply for a room stream
+                    RoomState room = getRoomState(envelope.getRoom());
+                    if (room != null) {
+                        receive(room, MessageClass.of(props), props, delivery.getBody(), -1, true);
+                    }
+                    privateChannel.basicAck(delivery.getEnvelope().getDeliveryTag(), false);
+                    return;
+                }
+
+                // Kept as bytes, decoded when rendered
+                byte[] body = delivery.getBody();
+                if (envelope != null) clock.update(envelope.getHlc());
+                synchronized (privateHistory) {
+                    privateHistory.addLast(new ChatMessage(MessageClass.PRIVATE, envelope, body));
+                    if (privateHistory.size() > PRIVATE_HISTORY_SIZE) privateHistory.removeFirst();
+                }
+                long sentMillis = envelope != null ? HybridClock.physicalMillis(envelope.getHlc()) : 0;
+                publisher.publish(ChatEvent.privateMessage(body, sentMillis), delivery.getEnvelope().getDeliveryTag(), privateAcks);
             };
 
-            // Start consuming with manual acknowledgment
-            consumerTag = channel.basicConsume(queueName, false, roomCallback, tag -> {});
-            channel.basicConsume(privateQueueName, true, privateCallback, tag -> {});
+            // Manual ack, private messages are backpressured like room messages (private lane)
+            privateConsumerTag = privateChannel.basicConsume(privateQueueName, false, privateCallback, tag -> {});
+
+            // History replies from the archive node (direct reply-to, must consume before publishing)
+            DeliverCallback historyCallback = (consumerTag, delivery) -> {
+                CompletableFuture<List<ArchivedMessage>> future = pendingHistory.get(delivery.getProperties().getCorrelationId());
+                if (future == null) return; // Timed out already
+                try {
+                    future.complete(ArchivedMessage.readPage(delivery.getBody()));
+                } catch (IOException e) {
+                    future.completeExceptionally(e);
+                }
+            };
+            channel.basicConsume(DIRECT_REPLY_TO, true, historyCallback, tag -> {});
 
-            // Send join notification
-            sendSystemMessage(nickname + " joined the chat");
+            // Open first room
+            return openRoom(activeRoom);
 
         } catch (IOException | TimeoutException e) {
-            Platform.runLater(() -> LoginDialog.showError("Failed to connect to RabbitMQ: " + e.getMessage()));
+            publisher.publish(ChatEvent.error("Failed to connect to RabbitMQ: " + e.getMessage()));
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    /**
+     * Subscribes to a room, keeps it in background.
+     * @param roomName Room name (ROUTING KEY)
+     * @return Room state
+     * @throws IOException If declaring or consuming fails
+     */
+    private RoomState joinRoom(String roomName) throws IOException {
+        RoomState room = getRoomState(roomName);
+        if (room != null) return room;
+
+        // Live messages only, history comes from the archive node,
+        // so the broker no longer keeps a copy per member
+//            NOTE_(DO_not_forget)_____________________________________________________________
+        // Создание очереди:
+        // durable = false — история хранится в архиве (ArchiveNode)
+        // exclusive = true — только для этого соединения
+        // autoDelete = true — удаляется после отключения клиента
+        // x-max-priority — уведомления и служебные сообщения обгоняют очередь чата
+//            _______________________________________________________________
+
+//_________ CHANNEL.QUEUEDECLARE(STRING QUEUE, BOOLEAN DURABLE, BOOLEAN EXCLUSIVE, BOOLEAN AUTODELETE, MAP<STRING, OBJECT> ARGUMENTS)__________________|
+        Map<String, Object> arguments = Map.of("x-max-priority", MessageClass.MAX_PRIORITY);
+        String queueName = channel.queueDeclare("", false, true, true, arguments).getQueue();
+        channel.queueBind(queueName, EXCHANGE, roomName);
+        room = new RoomState(roomName, queueName);
+
+        synchronized (rooms) {
+            rooms.put(roomName, room);
+        }
+
+        // Load latest history page after bind, before consuming:
+        // anything newer is in our queue, overlap is deduped
+        loadHistory(room, Long.MAX_VALUE, false);
+
+        // Start consuming with manual acknowledgment, same channel for all rooms
+        room.setConsumerTag(channel.basicConsume(room.getQueueName(), false, roomCallback, tag -> {}));
+
+        // Send join notification
+        sendSystemMessage(roomName, nickname + " joined the chat");
+        return room;
+    }
+
+    /**
+     * Opens a room in UI: joins if needed, moves previous room to background
+     * and materializes history from the buffered tail.
+     * Called off the FX thread, does network I/O.
+     * @param roomName Room name
+     * @return true if opened, false if failed (ERROR event published)
+     */
+    public synchronized boolean openRoom(String roomName) {
+        try {
+            RoomState previous = getRoomState(activeRoom);
+            if (previous != null && !roomName.equals(activeRoom)) {
+                previous.close();
+            }
+
+            RoomState room = joinRoom(roomName);
+            synchronized (room) {
+                activeRoom = roomName;
+                room.open(clock, sender -> requestMissing(room, sender));
+                publisher.publish(historyEvent(room));
+            }
+            publisher.publish(ChatEvent.unread(roomName)); // Bold open room, clear its counter
+            return true;
+        } catch (IOException e) {
+            publisher.publish(ChatEvent.error("Failed to open room: " + e.getMessage()));
             e.printStackTrace();
+            return false;
         }
     }
 
     /**
-     * Loads existing messages from queue.
+     * Loads a history page from the archive node into a room.
+     * Waits up to HISTORY_TIMEOUT_MS, without archive node the request is returned
+     * right away and history stays empty.
+     * @param room Room state
+     * @param beforeId Exclusive upper archive id, Long.MAX_VALUE for latest
+     * @param older true for /history pages, deduped against loaded history
+     * @return Number of messages added
      */
-    private void loadExistingMessages() {
+    private int loadHistory(RoomState room, long beforeId, boolean older) {
         try {
-            // Get all messages from queue without removing
-            boolean autoAck = false;
-            GetResponse response;
+            List<ArchivedMessage> page = fetchHistory(room.getName(), beforeId, HISTORY_PAGE).get();
+            return room.addArchived(page, older, clock, sender -> requestMissing(room, sender));
+        } catch (ExecutionException e) {
+            System.err.println("History for " + room.getName() + " not available: " + e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return 0;
+    }
 
-            List<String> existingMessages = new ArrayList<>();
+    /**
+     * Builds a HISTORY event of a room with recent private messages merged
+     * in by HLC, so a redraw does not wipe them from the chat area.
+     * @param room Room state
+     * @return Event
+     */
+    private ChatEvent historyEvent(RoomState room) {
+        List<ChatMessage> privates;
+        synchronized (privateHistory) {
+            privates = new ArrayList<>(privateHistory);
+        }
+        return ChatEvent.history(room.getName(), room.getHistory(privates));
+    }
+
+    /**
+     * Requests a history page from the archive node over direct reply-to.
+     * @param roomName Room name
+     * @param beforeId Exclusive upper archive id, Long.MAX_VALUE for latest
+     * @param limit Page size
+     * @return Page, oldest first; fails on timeout or if no archive node consumes requests
+     */
+    public CompletableFuture<List<ArchivedMessage>> fetchHistory(String roomName, long beforeId, int limit) {
+        String correlationId = UUID.randomUUID().toString();
+        CompletableFuture<List<ArchivedMessage>> future = new CompletableFuture<>();
+        pendingHistory.put(correlationId, future);
+        // Timeout completes the future too, so the entry is always removed
+        future.orTimeout(HISTORY_TIMEOUT_MS, TimeUnit.MILLISECONDS)
+                .whenComplete((page, error) -> pendingHistory.remove(correlationId));
+
+        try {
+            AMQP.BasicProperties props = new AMQP.BasicProperties.Builder()
+                    .replyTo(DIRECT_REPLY_TO)
+                    .correlationId(correlationId)
+                    .headers(ArchiveNode.beforeRequest(roomName, beforeId, limit))
+                    .build();
+            publish("", ArchiveNode.RPC_QUEUE, true, props, new byte[0]);
+        } catch (IOException e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
 
-            // Read all messages from queue
-            while ((response = channel.basicGet(queueName, autoAck)) != null) {
-                String message = new String(response.getBody(), StandardCharsets.UTF_8);
-                existingMessages.add(message);
+    /**
+     * Loads the previous history page of the open room. Blocks, call off the UI thread.
+     * @return Number of messages loaded, 0 if there are no older ones
+     */
+    public synchronized int loadOlderHistory() {
+        RoomState room = getRoomState(activeRoom);
+        if (room == null) return 0;
+
+        // A page may be all duplicates (e.g. latest page after the room was
+        // trimmed in background), keep paging while the archive moves back
+        int loaded = 0;
+        for (int i = 0; i < HISTORY_PAGES_PER_LOAD && loaded == 0; i++) {
+            long oldest = room.getOldestArchiveId();
+            if (oldest == 1) break;
+            loaded = loadHistory(room, oldest == 0 ? Long.MAX_VALUE : oldest, true);
+            if (room.getOldestArchiveId() == oldest) break; // Empty page or no archive node
+        }
+        if (loaded > 0) {
+            publisher.publish(historyEvent(room));
+        }
+        return loaded;
+    }
 
-                // Acknowledge the message
-                channel.basicAck(response.getEnvelope().getDeliveryTag(), false);
+    /**
+     * Handles a room message (live or resync reply) and updates UI.
+     * @param room Room state
+     * @param messageClass Message class
+     * @param props Delivery properties
+     * @param body Message body
+     * @param deliveryTag Tag to ack once subscribers are done, -1 if nothing to ack
+     * @param resync true for a resync reply, dropped if the room is in background
+     * @return true if publisher acks the delivery, false if caller should ack now
+     */
+    private boolean receive(RoomState room, MessageClass messageClass, AMQP.BasicProperties props, byte[] body,
+                            long deliveryTag, boolean resync) {
+        // Room lock: a history snapshot and the events around it are published in the same order
+        synchronized (room) {
+            int position = resync
+                    ? room.offerResync(messageClass, props, body, clock, sender -> requestMissing(room, sender))
+                    : room.offer(messageClass, props, body, clock, sender -> requestMissing(room, sender));
+            if (position < 0) {
+                // Buffered in background or duplicate, only counter may change
+                if (!resync && !room.isOpen()) {
+                    publisher.publish(ChatEvent.unread(room.getName()));
+                }
+                return false;
+            }
+            if (!room.getName().equals(activeRoom)) return false;
+
+            if (room.isLast(position)) {
+                long hlc = room.getHlc(position);
+                long sentMillis = hlc > 0 ? HybridClock.physicalMillis(hlc) : 0;
+                ChatEvent event = messageClass == MessageClass.PRESENCE
+                        ? ChatEvent.notice(room.getName(), room.getBody(position), sentMillis)
+                        : ChatEvent.message(room.getName(), room.getBody(position), sentMillis);
+                publisher.publish(event, deliveryTag, roomAcks);
+                return deliveryTag >= 0;
             }
+        }
 
-            // Add to UI
-            Platform.runLater(() -> {
-                if (ui != null) {
-                    for (String msg : existingMessages) {
-                        ui.appendMessage(msg);
-                        messageHistory.add(msg);
+        // Arrived late (resync), history must be redrawn in order
+        scheduleRedraw(room);
+        return false;
+    }
+
+    /**
+     * Publishes a history redraw of the open room after REDRAW_DELAY_MS.
+     * Late arrivals of one burst (resync replies, HLC inversions under load)
+     * share it, instead of one snapshot and full redraw each.
+     * @param room Room state
+     */
+    private void scheduleRedraw(RoomState room) {
+        if (!redrawsQueued.add(room.getName())) return; // Already scheduled, will include this one
+        try {
+            ackExecutor.schedule(() -> {
+                synchronized (room) {
+                    redrawsQueued.remove(room.getName());
+                    if (room.isOpen() && room.getName().equals(activeRoom)) {
+                        publisher.publish(historyEvent(room));
                     }
                 }
-            });
+            }, REDRAW_DELAY_MS, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            redrawsQueued.remove(room.getName()); // Closed
+        }
+    }
 
+    /**
+     * Acks deliveries of one channel once all subscribers are done with them.
+     * Tags are buffered and flushed by one task per batch, not one per ack.
+     */
+    private class AckBuffer implements LongConsumer {
+        private final Supplier<Channel> channel; // Channel the deliveries came from
+        private long[] pending = new long[128]; // Tags waiting for the ack thread
+        private long[] batch = new long[128]; // Tags being acked, swapped with pending
+        private int count;
+        private boolean scheduled; // Flush queued on ack thread
+
+        AckBuffer(Supplier<Channel> channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public void accept(long deliveryTag) {
+            synchronized (this) {
+                if (count == pending.length) {
+                    pending = Arrays.copyOf(pending, count * 2);
+                }
+                pending[count++] = deliveryTag;
+                if (scheduled) return;
+                scheduled = true;
+            }
+            execute(this::flush);
+        }
+
+        /**
+         * Acks buffered tags (ack thread).
+         */
+        private void flush() {
+            long[] tags;
+            int size;
+            synchronized (this) {
+                tags = pending;
+                size = count;
+                pending = batch.length >= tags.length ? batch : new long[tags.length];
+                batch = tags;
+                count = 0;
+                scheduled = false;
+            }
+
+            try {
+                Channel target = channel.get();
+                if (target == null || !target.isOpen()) return;
+                for (int i = 0; i < size; i++) {
+                    target.basicAck(tags[i], false);
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Runs a task on the ack thread, drops it once the client is closed.
+     * @param task Ack or qos task
+     */
+    private void execute(Runnable task) {
+        try {
+            ackExecutor.execute(task);
+        } catch (RejectedExecutionException e) {
+            // Closed, channel goes away with unacked deliveries requeued
+        }
+    }
+
+    /**
+     * Changes channel prefetch, so the broker sends about what subscribers asked for.
+     * basicQos is a synchronous round trip, so updates are sent at most once per
+     * QOS_INTERVAL_MS: changes in between share one update with the latest value.
+     * Applies the publisher's latest value, so a change racing with connect() is not lost.
+     * @param prefetch Unacked deliveries allowed
+     */
+    private void setPrefetch(int prefetch) {
+        if (!qosQueued.compareAndSet(false, true)) return; // Scheduled update takes the latest value
+        long delay = Math.max(0, lastQosMillis + QOS_INTERVAL_MS - System.currentTimeMillis());
+        try {
+            ackExecutor.schedule(() -> {
+                qosQueued.set(false);
+                int latest = publisher.getPrefetch();
+                try {
+                    if (channel == null || !channel.isOpen()) return; // connect() applies it
+                    if (latest == appliedPrefetch) return; // Changed back meanwhile
+                    channel.basicQos(latest, true);
+                    appliedPrefetch = latest;
+                    lastQosMillis = System.currentTimeMillis();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            qosQueued.set(false); // Closed
+        }
+    }
+
+    /**
+     * Asks a sender to republish missing sequence ranges to our private queue.
+     * The request goes to the sender's private queue, not to the room:
+     * other members and the archive node have nothing to do with it.
+     * @param room Room state
+     * @param sender Sender session id (nick@millis)
+     */
+    private void requestMissing(RoomState room, String sender) {
+        int at = sender.lastIndexOf('@');
+        if (at <= 0) return; // Not a session id, no private queue to ask
+        String senderQueue = "private_" + sender.substring(0, at);
+
+        for (long[] range : room.getStream().missing(sender)) {
+            try {
+                Map<String, Object> headers = new HashMap<>();
+                headers.put(RESYNC_TARGET, sender);
+                headers.put(RESYNC_FROM, range[0]);
+                headers.put(RESYNC_TO, range[1]);
+                headers.put(Envelope.ROOM, room.getName());
+                AMQP.BasicProperties props = MessageClass.RESYNC.properties().builder()
+                        .headers(headers)
+                        .replyTo(privateQueueName)
+                        .build();
+                publish("", senderQueue, false, props, new byte[0]);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Republishes requested range from room outbox, if the request is for us.
+     * @param room Room state
+     * @param props Resync request properties
+     */
+    private void answerResync(RoomState room, AMQP.BasicProperties props) {
+        Map<String, Object> headers = props.getHeaders();
+        if (headers == null || props.getReplyTo() == null) return;
+        Object target = headers.get(RESYNC_TARGET);
+        if (target == null || !target.toString().equals(sessionId)) return;
+        if (!(headers.get(RESYNC_FROM) instanceof Number) || !(headers.get(RESYNC_TO) instanceof Number)) return;
+
+        long from = ((Number) headers.get(RESYNC_FROM)).longValue();
+        long to = ((Number) headers.get(RESYNC_TO)).longValue();
+
+        try {
+            for (RoomState.Outgoing outgoing : room.outgoingRange(from, to)) {
+                publish("", props.getReplyTo(), false, outgoing.getEnvelope().toProperties(MessageClass.CHAT), outgoing.getBody());
+            }
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
     /**
-     * Sends a chat message to the room.
+     * Sends a chat message to the open room.
      * @param message Message to send
+     * @return Completes when the broker confirms the message
      */
-    public void sendMessage(String message) {
-        String fullMessage = "[" + LocalTime.now().format(DateTimeFormatter.ofPattern("HH:mm:ss")) + "] " + nickname + ": " + message;
+    public CompletableFuture<Void> sendMessage(String message) {
         try {
-            // Send with persistent delivery mode
-            AMQP.BasicProperties props = new AMQP.BasicProperties.Builder()
-                    .deliveryMode(2) // persistent (2)  transient (1)
-                    .build();
-
-            channel.basicPublish("chat_exchange_v2", roomName, props, fullMessage.getBytes(StandardCharsets.UTF_8));
+            RoomState room = getRoomState(activeRoom);
+            if (room == null) return CompletableFuture.failedFuture(new IOException("Not in a room"));
+
+            byte[] body = MessageCodec.chat(nickname, message);
+            synchronized (room) {
+                Envelope envelope = room.nextOutgoing(sessionId, clock, body);
+                // Chat is persistent
+                return publish(EXCHANGE, room.getName(), false, envelope.toProperties(MessageClass.CHAT), body);
+            }
         } catch (IOException e) {
-            Platform.runLater(() -> LoginDialog.showError("Failed to send message: " + e.getMessage()));
             e.printStackTrace();
+            return CompletableFuture.failedFuture(e);
         }
     }
 
@@ -184,56 +675,139 @@ public class ChatClient {
      *
      * @param recipient Recipient's nickname
      * @param message Message to send
+     * @return Completes when the broker confirms the message
      */
-    public void sendPrivateMessage(String recipient, String message) {
-        String fullMessage = "[" + LocalTime.now().format(DateTimeFormatter.ofPattern("HH:mm:ss")) + "] [Private from " + nickname + "] " + message;
+    public CompletableFuture<Void> sendPrivateMessage(String recipient, String message) {
         try {
 
             // reference to queue for private messages
             String privateQueueName = "private_" + recipient;
-            AMQP.BasicProperties props = new AMQP.BasicProperties.Builder()
-                    .deliveryMode(2)
-                    .build();
-            channel.basicPublish("", privateQueueName,true, props, fullMessage.getBytes(StandardCharsets.UTF_8));
+            Envelope envelope = new Envelope(sessionId, 0, clock.tick(), null);
+            return publish("", privateQueueName,true, envelope.toProperties(MessageClass.PRIVATE), MessageCodec.privateMessage(nickname, message));
         } catch (IOException e) {
-            Platform.runLater(() -> LoginDialog.showError("Failed to send private message: " + e.getMessage()));
             e.printStackTrace();
+            return CompletableFuture.failedFuture(e);
         }
     }
 
     /**
-     * Sends a system message to the room.
+     * Publishes with a confirm future. All publishes go through here,
+     * so publish sequence numbers match confirms.
+     * @return Completes when the broker confirms the message
+     * @throws IOException If publishing fails
+     */
+    private CompletableFuture<Void> publish(String exchange, String routingKey, boolean mandatory,
+                                            AMQP.BasicProperties props, byte[] body) throws IOException {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        synchronized (confirms) {
+            long seqNo = channel.getNextPublishSeqNo();
+            confirms.put(seqNo, future);
+            try {
+                channel.basicPublish(exchange, routingKey, mandatory, props, body);
+            } catch (IOException e) {
+                confirms.remove(seqNo);
+                throw e;
+            }
+        }
+        return future;
+    }
+
+    /**
+     * Completes send futures from a broker ack or nack.
+     * @param seqNo Publish sequence number
+     * @param multiple true if all up to seqNo are confirmed
+     * @param error null for ack, error for nack
+     */
+    private void confirm(long seqNo, boolean multiple, Exception error) {
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        if (multiple) {
+            Map<Long, CompletableFuture<Void>> head = confirms.headMap(seqNo, true);
+            futures.addAll(head.values());
+            head.clear(); // Removes from confirms
+        } else {
+            CompletableFuture<Void> future = confirms.remove(seqNo);
+            if (future != null) futures.add(future);
+        }
+
+        for (CompletableFuture<Void> future : futures) {
+            if (error == null) {
+                future.complete(null);
+            } else {
+                future.completeExceptionally(error);
+            }
+        }
+    }
+
+    private void failPendingConfirms(Exception error) {
+        List<CompletableFuture<Void>> futures = new ArrayList<>(confirms.values());
+        confirms.clear();
+        for (CompletableFuture<Void> future : futures) {
+            future.completeExceptionally(error);
+        }
+    }
+
+    /**
+     * Sends a system message to a room.
+     * @param roomName Room name
      * @param message System message to send
      */
-    private void sendSystemMessage(String message) {
+    private void sendSystemMessage(String roomName, String message) {
         try {
             //Exchange "chat_exchange_v2" is used for all messages
-            String fullMessage = "[" + LocalTime.now().format(DateTimeFormatter.ofPattern("HH:mm:ss")) + "] System: " + message;
-            AMQP.BasicProperties props = new AMQP.BasicProperties.Builder()
-                    .deliveryMode(2)
-                    .build();
-            channel.basicPublish("chat_exchange_v2", roomName, props, fullMessage.getBytes(StandardCharsets.UTF_8));
+            // Join/leave notices are transient, expire after TTL, so no sequence (would look like gaps)
+            Envelope envelope = new Envelope(sessionId, 0, clock.tick(), roomName);
+            publish(EXCHANGE, roomName, false, envelope.toProperties(MessageClass.PRESENCE), MessageCodec.system(message));
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
     /**
-     * Closes RabbitMQ connection and channel.
+     * Sends typing indicator to the open room.
+     * Coalesced to at most one per TYPING_INTERVAL_MS, extra calls are dropped.
+     */
+    public void sendTyping() {
+        long now = System.currentTimeMillis();
+        if (now - lastTypingSent < TYPING_INTERVAL_MS) return;
+        lastTypingSent = now;
+
+        try {
+            if (channel == null || !channel.isOpen()) return;
+            publish(EXCHANGE, activeRoom, false, MessageClass.TYPING.properties(), nicknameBytes);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Closes RabbitMQ connection and channel, leaves all rooms.
      */
     public void close() {
         try {
-            // Cancel consumer
-            if (consumerTag != null && channel != null && channel.isOpen()) {
-                channel.basicCancel(consumerTag);
+            // Stop consuming first, so no new deliveries need acks
+            if (privateConsumerTag != null && privateChannel != null && privateChannel.isOpen()) {
+                privateChannel.basicCancel(privateConsumerTag);
             }
+            for (RoomState room : getRoomStates()) {
+                // Cancel consumer
+                if (room.getConsumerTag() != null && channel != null && channel.isOpen()) {
+                    channel.basicCancel(room.getConsumerTag());
+                }
 
-            // Send leave message
-            sendSystemMessage(nickname + " left the chat");
+                // Send leave message
+                sendSystemMessage(room.getName(), nickname + " left the chat");
+            }
 
             // Wait for message sent
             Thread.sleep(200);
 
+            // Subscriptions end before the ack thread, so late request calls do nothing
+            publisher.complete();
+            failPendingConfirms(new IOException("Client closed"));
+            ackExecutor.shutdown();
+            if (privateChannel != null && privateChannel.isOpen()) {
+                privateChannel.close();
+            }
             if (channel != null && channel.isOpen()) {
                 channel.close();
             }
@@ -245,6 +819,18 @@ public class ChatClient {
         }
     }
 
+    private RoomState getRoomState(String roomName) {
+        synchronized (rooms) {
+            return rooms.get(roomName);
+        }
+    }
+
+    private List<RoomState> getRoomStates() {
+        synchronized (rooms) {
+            return new ArrayList<>(rooms.values());
+        }
+    }
+
     /**
      * Gets user nickname.
      * @return Nickname
@@ -254,18 +840,37 @@ public class ChatClient {
     }
 
     /**
-     * Gets room name.
+     * Gets open room name.
      * @return Room name
      */
     public String getRoomName() {
-        return roomName;
+        return activeRoom;
+    }
+
+    /**
+     * Gets hand-off latency per lane (since the last [lanes] log line).
+     * @return Lane stats
+     */
+    public LaneStats getLaneStats() {
+        return publisher.getLaneStats();
+    }
+
+    /**
+     * Gets unread count of a room.
+     * @param roomName Room name
+     * @return Unread chat messages, 0 if not subscribed or open
+     */
+    public int getUnread(String roomName) {
+        RoomState room = getRoomState(roomName);
+        return room != null ? room.getUnread() : 0;
     }
 
     /**
-     * Gets message history.
+     * Gets message history of the open room.
      * @return List of messages
      */
     public List<String> getMessageHistory() {
-        return new ArrayList<>(messageHistory);
+        RoomState room = getRoomState(activeRoom);
+        return room != null ? room.getHistory() : new ArrayList<>();
     }
 }
@@ -0,0 +1,208 @@
+/**
+ * @author Kostiantyn Feniuk
+ */
+
+package com.apokalist.telegram_mini;
+
+import java.util.List;
+
+/**
+ * Event published by ChatClient to its subscribers.
+ */
+public class ChatEvent {
+    /**
+     * Event type.
+     */
+    public enum Type {
+        MESSAGE, // New message in the open room
+        NOTICE, // Join/leave notice in the open room
+        PRIVATE, // Private message
+        HISTORY, // Whole history of the open room with recent private messages (opened, or a late message was inserted)
+        TYPING, // User is typing in the open room
+        UNREAD, // Unread counter of a room changed
+        ERROR // Connection or publish error
+    }
+
+    /**
+     * Delivery lane. Lanes share delivery by weight, so control events and
+     * private messages are not stuck behind a room backlog.
+     */
+    public enum Lane {
+        CONTROL(8), // Join/leave notices, typing, unread counters, errors
+        PRIVATE(4), // Private messages
+        ROOM(1); // Room messages and history, in order
+
+        private final int weight; // Events per round when lanes compete
+
+        Lane(int weight) {
+            this.weight = weight;
+        }
+
+        /**
+         * Gets weight.
+         * @return Events per round
+         */
+        public int getWeight() {
+            return weight;
+        }
+    }
+
+    private final Type type; // Event type
+    private final Lane lane; // Delivery lane
+    private final long sentMillis; // Sender wall time from envelope, 0 if unknown
+    private final long createdNanos; // When the client published it, for lane latency
+    private final String room; // Room name, null for private and errors
+    private final byte[] body; // MESSAGE, NOTICE and PRIVATE, decoded on first getText
+    private String text; // Message text, typing user or error
+    private final List<String> history; // HISTORY only
+
+    private ChatEvent(Type type, Lane lane, long sentMillis, String room, byte[] body, String text, List<String> history) {
+        this.type = type;
+        this.lane = lane;
+        this.sentMillis = sentMillis;
+        this.createdNanos = System.nanoTime();
+        this.room = room;
+        this.body = body;
+        this.text = text;
+        this.history = history;
+    }
+
+    /**
+     * New message in the open room.
+     * @param room Room name
+     * @param body UTF-8 message text
+     * @param sentMillis Sender wall time, 0 if unknown
+     * @return Event
+     */
+    public static ChatEvent message(String room, byte[] body, long sentMillis) {
+        return new ChatEvent(Type.MESSAGE, Lane.ROOM, sentMillis, room, body, null, null);
+    }
+
+    /**
+     * Join/leave notice in the open room. Control lane, so the user list
+     * does not wait behind a room backlog.
+     * @param room Room name
+     * @param body UTF-8 notice text
+     * @param sentMillis Sender wall time, 0 if unknown
+     * @return Event
+     */
+    public static ChatEvent notice(String room, byte[] body, long sentMillis) {
+        return new ChatEvent(Type.NOTICE, Lane.CONTROL, sentMillis, room, body, null, null);
+    }
+
+    /**
+     * Private message.
+     * @param body UTF-8 message text
+     * @param sentMillis Sender wall time, 0 if unknown
+     * @return Event
+     */
+    public static ChatEvent privateMessage(byte[] body, long sentMillis) {
+        return new ChatEvent(Type.PRIVATE, Lane.PRIVATE, sentMillis, null, body, null, null);
+    }
+
+    /**
+     * Whole history of the open room.
+     * @param room Room name
+     * @param history Messages in order
+     * @return Event
+     */
+    public static ChatEvent history(String room, List<String> history) {
+        return new ChatEvent(Type.HISTORY, Lane.ROOM, 0, room, null, null, history);
+    }
+
+    /**
+     * Typing indicator.
+     * @param room Room name
+     * @param user Typing user
+     * @return Event
+     */
+    public static ChatEvent typing(String room, String user) {
+        return new ChatEvent(Type.TYPING, Lane.CONTROL, 0, room, null, user, null);
+    }
+
+    /**
+     * Unread counter changed.
+     * @param room Room name
+     * @return Event
+     */
+    public static ChatEvent unread(String room) {
+        return new ChatEvent(Type.UNREAD, Lane.CONTROL, 0, room, null, null, null);
+    }
+
+    /**
+     * Error to show to the user.
+     * @param text Error message
+     * @return Event
+     */
+    public static ChatEvent error(String text) {
+        return new ChatEvent(Type.ERROR, Lane.CONTROL, 0, null, null, text, null);
+    }
+
+    /**
+     * Gets event type.
+     * @return Type
+     */
+    public Type getType() {
+        return type;
+    }
+
+    /**
+     * Gets delivery lane.
+     * @return Lane
+     */
+    public Lane getLane() {
+        return lane;
+    }
+
+    /**
+     * Gets sender wall time.
+     * @return Milliseconds since epoch, 0 if unknown
+     */
+    public long getSentMillis() {
+        return sentMillis;
+    }
+
+    /**
+     * Gets when the client published the event.
+     * @return System.nanoTime() value
+     */
+    public long getCreatedNanos() {
+        return createdNanos;
+    }
+
+    /**
+     * Gets room name.
+     * @return Room name, null for private messages and errors
+     */
+    public String getRoom() {
+        return room;
+    }
+
+    /**
+     * Gets text: message, typing user or error.
+     * Message bodies are decoded here, once.
+     * @return Text
+     */
+    public String getText() {
+        if (text == null && body != null) {
+            text = MessageCodec.decode(body); // Same result on any thread, race is harmless
+        }
+        return text;
+    }
+
+    /**
+     * Gets message body without decoding.
+     * @return UTF-8 text, null for events without a message
+     */
+    public byte[] getBody() {
+        return body;
+    }
+
+    /**
+     * Gets history (HISTORY events).
+     * @return Messages in order
+     */
+    public List<String> getHistory() {
+        return history;
+    }
+}
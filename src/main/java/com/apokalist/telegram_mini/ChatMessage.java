@@ -0,0 +1,116 @@
+/**
+ * @author Kostiantyn Feniuk
+ */
+
+package com.apokalist.telegram_mini;
+
+import java.util.Arrays;
+
+/**
+ * Received message with its class and envelope.
+ * Body is kept as bytes and decoded only when text is needed. Decoded
+ * text is cached, since every history redraw of the open room needs it
+ * again; messages only buffered in background are never decoded.
+ */
+public class ChatMessage {
+    private final MessageClass messageClass; // Delivery class
+    private final Envelope envelope; // Ordering info, null for older clients
+    private final byte[] body; // UTF-8 formatted text
+    private final long archiveId; // Id in the archive node, 0 if received live
+    private String text; // Decoded on first getText
+
+    /**
+     * Constructor.
+     * @param messageClass Message class
+     * @param envelope Envelope or null
+     * @param body UTF-8 formatted text
+     */
+    public ChatMessage(MessageClass messageClass, Envelope envelope, byte[] body) {
+        this(messageClass, envelope, body, 0);
+    }
+
+    /**
+     * Constructor for a message loaded from the archive.
+     * @param messageClass Message class
+     * @param envelope Envelope or null
+     * @param body UTF-8 formatted text
+     * @param archiveId Archive id, 0 if received live
+     */
+    public ChatMessage(MessageClass messageClass, Envelope envelope, byte[] body, long archiveId) {
+        this.messageClass = messageClass;
+        this.envelope = envelope;
+        this.body = body;
+        this.archiveId = archiveId;
+    }
+
+    /**
+     * Gets message class.
+     * @return Message class
+     */
+    public MessageClass getMessageClass() {
+        return messageClass;
+    }
+
+    /**
+     * Gets envelope.
+     * @return Envelope, null if message had none
+     */
+    public Envelope getEnvelope() {
+        return envelope;
+    }
+
+    /**
+     * Gets archive id.
+     * @return Id in the archive node, 0 if received live
+     */
+    public long getArchiveId() {
+        return archiveId;
+    }
+
+    /**
+     * Gets dedup key: sender and sequence, or sender and HLC if unsequenced.
+     * @return Key, null without envelope
+     */
+    public String getKey() {
+        if (envelope == null) return null;
+        return envelope.getSeq() > 0
+                ? envelope.getSender() + "#" + envelope.getSeq()
+                : envelope.getSender() + "/" + envelope.getHlc();
+    }
+
+    /**
+     * Gets HLC timestamp, used for ordering.
+     * @return Timestamp, 0 if unknown
+     */
+    public long getHlc() {
+        return envelope != null ? envelope.getHlc() : 0;
+    }
+
+    /**
+     * Gets body.
+     * @return UTF-8 formatted text
+     */
+    public byte[] getBody() {
+        return body;
+    }
+
+    /**
+     * Gets formatted text, decoded on first call. Call it only for rendering.
+     * @return Text
+     */
+    public String getText() {
+        if (text == null) {
+            text = MessageCodec.decode(body); // Same result on any thread, race is harmless
+        }
+        return text;
+    }
+
+    /**
+     * Compares bodies without decoding.
+     * @param other UTF-8 body
+     * @return true if same bytes
+     */
+    public boolean hasBody(byte[] other) {
+        return Arrays.equals(body, other);
+    }
+}
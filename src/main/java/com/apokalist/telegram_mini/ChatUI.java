@@ -4,27 +4,50 @@
 
 package com.apokalist.telegram_mini;
 
+import javafx.animation.PauseTransition;
 import javafx.geometry.Insets;
 import javafx.scene.Scene;
 import javafx.scene.control.*;
 import javafx.scene.layout.*;
 import javafx.stage.Stage;
 import javafx.application.Platform;
+import javafx.util.Duration;
 
+import java.util.List;
 import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
 
 /**
  * UI for the chat app, sets up JavaFX components
+ *
+ * Subscribes to ChatClient events like any other consumer and requests
+ * more only after rendering, so its demand window drives broker prefetch.
  */
 public class ChatUI {
     private ChatClient client; // Client for RabbitMQ
+    private String ownMarker; // "nickname:", marks own messages, built once
     private final Stage stage; // Main window
     private TextArea chatArea; // Where messages show up
     private TextField inputField; // Input for messages
     private ListView<String> roomList; // List of rooms
     private ListView<String> userList; // List of users
     private Label accountLabel; // Shows logged-in user
+    private Label typingLabel; // "user is typing..." line
+    private final PauseTransition typingTimeout = new PauseTransition(Duration.seconds(4)); // Hides typing line
     private RoomManager roomManager; // Manages room list
+    private final RenderQueue renderQueue; // Batches rendering, reports rendered events
+    private boolean notifying; // Title is flashing
+    private final ExecutorService roomTasks = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "chat-room-tasks");
+        thread.setDaemon(true);
+        return thread;
+    }); // Room switches and history pages, off the FX thread, in click order
+    private Flow.Subscription subscription; // Client events
+    private int window = RenderQueue.INITIAL_CREDIT; // Events allowed in flight
+    private int outstanding; // Requested and not rendered yet
 
     /**
      * Constructor, sets up client and stage.
@@ -33,8 +56,94 @@ public class ChatUI {
      */
     public ChatUI(ChatClient client, Stage stage) {
         this.client = client;
+        this.ownMarker = client.getNickname() + ":";
         this.stage = stage;
         this.roomManager = new RoomManager(this);
+        this.renderQueue = new RenderQueue(this::renderMessage, this::renderHistory, this::afterBatch,
+                () -> roomList.refresh(), this::eventsDone, this::setWindow);
+        client.messages().subscribe(new EventSubscriber());
+    }
+
+    /**
+     * Routes client events to the render queue.
+     */
+    private class EventSubscriber implements Flow.Subscriber<ChatEvent> {
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            synchronized (ChatUI.this) {
+                ChatUI.this.subscription = subscription;
+            }
+            topUp();
+        }
+
+        @Override
+        public void onNext(ChatEvent event) {
+            switch (event.getType()) {
+                // Bodies are decoded by the render queue on the FX thread, not here
+                case MESSAGE -> renderQueue.submit(event);
+                case NOTICE, PRIVATE -> renderQueue.submitUrgent(event);
+                case HISTORY -> renderQueue.submitRedraw(event.getHistory(), true);
+                case TYPING -> {
+                    Platform.runLater(() -> showTyping(event.getText()));
+                    eventsDone(1);
+                }
+                case UNREAD -> {
+                    renderQueue.roomsChanged();
+                    eventsDone(1);
+                }
+                case ERROR -> {
+                    Platform.runLater(() -> LoginDialog.showError(event.getText()));
+                    eventsDone(1);
+                }
+            }
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            throwable.printStackTrace();
+        }
+
+        @Override
+        public void onComplete() {
+            System.out.println("Client closed");
+        }
+    }
+
+    /**
+     * Events are done (rendered, collapsed or handled), ask for more.
+     * @param count Number of events
+     */
+    private void eventsDone(int count) {
+        synchronized (this) {
+            outstanding -= count;
+        }
+        topUp();
+    }
+
+    /**
+     * New window from measured drain rate.
+     * @param credit Events allowed in flight
+     */
+    private void setWindow(int credit) {
+        synchronized (this) {
+            window = credit;
+        }
+        topUp();
+    }
+
+    /**
+     * Requests up to the window. Smaller window just waits until enough is done.
+     */
+    private void topUp() {
+        Flow.Subscription current;
+        int request;
+        synchronized (this) {
+            if (subscription == null || outstanding >= window) return;
+            current = subscription;
+            request = window - outstanding;
+            outstanding = window;
+        }
+        current.request(request); // May call onNext right here
     }
 
     /**
@@ -52,36 +161,17 @@ public class ChatUI {
         roomList.getItems().addAll(roomManager.getRooms());
         roomList.getSelectionModel().select(client.getRoomName()); // Select current room
         roomList.setPrefWidth(150); // Width
+        roomList.setDisable(true); // Until connected, see setInteractive
 
-        // Connect room manager
-        roomManager.connect();
-
-        // Switch room when selected
+        // Switch room when selected, old room keeps running in background
         roomList.getSelectionModel().selectedItemProperty().addListener((obs, oldRoom, newRoom) -> {
             if (newRoom != null && !newRoom.equals(client.getRoomName())) {
-                client.close(); // Close old client
-
-                // Wait a bit, then switch
-                new Thread(() -> {
-                    try {
-                        Thread.sleep(500); // Give it time to shutdown
-                        Platform.runLater(() -> {
-                            client = new ChatClient(client.getNickname(), newRoom, this); // New client
-                            this.client = client;
-                            client.connect(); // Connect to new room
-
-                            // Reset UI
-                            chatArea.clear();
-                            userList.getItems().clear();
-                            accountLabel.setText("Logged in as: " + client.getNickname());
-                            stage.setTitle("Chat - " + newRoom + " (" + client.getNickname() + ")");
-
-                            roomList.refresh(); // Update list
-                        });
-                    } catch (InterruptedException e) {
-                        Thread.currentThread().interrupt();
-                    }
-                }).start();
+                // Declare and history load off the FX thread, redraws chat when done
+                roomTasks.execute(() -> client.openRoom(newRoom));
+
+                // Reset UI
+                typingLabel.setText("");
+                stage.setTitle("Chat - " + newRoom + " (" + client.getNickname() + ")");
             }
         });
 
@@ -110,7 +200,8 @@ public class ChatUI {
                 if (empty || item == null) {
                     setText(null);
                 } else {
-                    setText("  " + item); // Add padding
+                    int unread = client.getUnread(item);
+                    setText("  " + item + (unread > 0 ? " (" + unread + ")" : "")); // Add padding, unread count
                     if (item.equals(client.getRoomName())) {
                         setStyle("-fx-font-weight: bold;"); // Bold current room
                     } else {
@@ -130,8 +221,18 @@ public class ChatUI {
         chatArea.setWrapText(true); // Wrap text
 
         inputField = new TextField();
-        inputField.setPromptText("Enter message...");
+        inputField.setPromptText("Connecting...");
+        inputField.setDisable(true); // Until connected, see setInteractive
         inputField.setOnAction(e -> sendMessage()); // Send on enter
+        inputField.textProperty().addListener((obs, oldText, newText) -> {
+            if (!newText.isEmpty() && !newText.startsWith("/")) {
+                client.sendTyping(); // Coalesced in client
+            }
+        });
+
+        typingLabel = new Label();
+        typingLabel.setId("typingLabel"); // For CSS
+        typingTimeout.setOnFinished(e -> typingLabel.setText(""));
 
         Button sendButton = new Button("Send");
         sendButton.setOnAction(e -> sendMessage()); // Send on click
@@ -154,13 +255,13 @@ public class ChatUI {
                 TextInputDialog dialog = new TextInputDialog();
                 dialog.setTitle("Private Message");
                 dialog.setHeaderText("Message to " + selectedUser);
-                dialog.showAndWait().ifPresent(msg -> client.sendPrivateMessage(selectedUser, msg));
+                dialog.showAndWait().ifPresent(msg -> reportFailure(client.sendPrivateMessage(selectedUser, msg), "private message"));
             }
         });
         userMenu.getItems().add(sendPrivate);
         userList.setContextMenu(userMenu);
 
-        VBox chatPane = new VBox(10, chatArea, inputBox);
+        VBox chatPane = new VBox(10, chatArea, typingLabel, inputBox);
         chatPane.setPadding(new Insets(10));
         VBox.setVgrow(chatArea, Priority.ALWAYS); // Stretch chat area
 
@@ -202,8 +303,19 @@ public class ChatUI {
         System.out.println("Showing stage...");
         stage.show();
 
-        // Focus input field
-        Platform.runLater(() -> inputField.requestFocus());
+    }
+
+    /**
+     * Enables input once connections are up and history is loaded.
+     * @param interactive true to enable input
+     */
+    public void setInteractive(boolean interactive) {
+        inputField.setDisable(!interactive);
+        roomList.setDisable(!interactive);
+        inputField.setPromptText(interactive ? "Enter message..." : "Connecting...");
+        if (interactive) {
+            inputField.requestFocus(); // Focus input field
+        }
     }
 
     /**
@@ -217,47 +329,104 @@ public class ChatUI {
     }
 
     /**
-     * Adds message to chat area.
+     * Adds local message (not from the client) to chat area. Any thread.
      * @param message Message to display
      */
     public void appendMessage(String message) {
-        Platform.runLater(() -> {
-            /// Bold own messages
-            if (message.contains(client.getNickname() + ":")) {
-                chatArea.appendText("**" + message + "**\n");
-            } else {
-                chatArea.appendText(message + "\n");
+        renderQueue.submit(message, false);
+    }
+
+    /**
+     * Renders one message (FX thread, from RenderQueue).
+     * @param message Message to display
+     */
+    private void renderMessage(String message) {
+        /// Bold own messages
+        if (message.contains(ownMarker)) {
+            chatArea.appendText("**" + message + "**\n");
+        } else {
+            chatArea.appendText(message + "\n");
+        }
+
+        updateUserList(message);
+    }
+
+    /**
+     * Runs once per render pass, not per message.
+     */
+    private void afterBatch() {
+        chatArea.setScrollTop(Double.MAX_VALUE); // Scroll to bottom
+
+        // Notify if window not focused
+        if (!stage.isFocused()) {
+            notifyNewMessage();
+        }
+    }
+
+    /**
+     * Updates user list from join/leave notice.
+     * @param message Message text
+     */
+    private void updateUserList(String message) {
+        if (message.contains("joined the chat")) {
+            String user = secondWord(message);
+            if (user != null && !userList.getItems().contains(user) && !user.equals("System:")) {
+                userList.getItems().add(user); // Add new user
             }
-            chatArea.setScrollTop(Double.MAX_VALUE); // Scroll to bottom
-
-            // Update user list
-            if (message.contains("joined the chat")) {
-                String[] parts = message.split(" ");
-                if (parts.length > 1) {
-                    String user = parts[1];
-                    if (!userList.getItems().contains(user) && !user.equals("System:")) {
-                        userList.getItems().add(user); // Add new user
-                    }
-                }
-            } else if (message.contains("left the chat")) {
-                String[] parts = message.split(" ");
-                if (parts.length > 1) {
-                    String user = parts[1];
-                    userList.getItems().remove(user); // Remove user
-                }
+        } else if (message.contains("left the chat")) {
+            String user = secondWord(message);
+            if (user != null) {
+                userList.getItems().remove(user); // Remove user
             }
+        }
+    }
+
+    /**
+     * Gets second space-separated word without splitting the whole message.
+     * @param message Message text
+     * @return Word, null if none
+     */
+    private static String secondWord(String message) {
+        int start = message.indexOf(' ');
+        if (start < 0) return null;
+        int end = message.indexOf(' ', start + 1);
+        return message.substring(start + 1, end < 0 ? message.length() : end);
+    }
 
-            // Notify if window not focused
-            if (!stage.isFocused()) {
-                notifyNewMessage();
+    /**
+     * Renders whole history: room opened, or a late message was inserted
+     * (FX thread, from RenderQueue).
+     * @param messages Messages in order
+     */
+    private void renderHistory(List<String> messages) {
+        userList.getItems().clear();
+        StringBuilder text = new StringBuilder();
+        for (String message : messages) {
+            updateUserList(message);
+            if (message.contains(ownMarker)) {
+                text.append("**").append(message).append("**\n");
+            } else {
+                text.append(message).append('\n');
             }
-        });
+        }
+        chatArea.setText(text.toString());
+    }
+
+    /**
+     * Shows typing indicator for a user, hides it after a few seconds.
+     * @param user Nickname of typing user
+     */
+    private void showTyping(String user) {
+        typingLabel.setText(user + " is typing...");
+        typingTimeout.playFromStart();
     }
 
     /**
      * Flashes title for new messages.
      */
     private void notifyNewMessage() {
+        if (notifying) return; // Already flashing
+        notifying = true;
         new Thread(() -> {
             try {
                 String originalTitle = stage.getTitle();
@@ -269,6 +438,8 @@ public class ChatUI {
                 }
             } catch (InterruptedException e) {
                 Thread.currentThread().interrupt();
+            } finally {
+                Platform.runLater(() -> notifying = false);
             }
         }).start();
     }
@@ -285,29 +456,48 @@ public class ChatUI {
                 if (parts.length >= 2) {
                     String recipient = parts[0];
                     String privateMessage = parts[1];
-                    client.sendPrivateMessage(recipient, privateMessage);
+                    reportFailure(client.sendPrivateMessage(recipient, privateMessage), "private message");
                     chatArea.appendText("[Private to " + recipient + "] " + privateMessage + "\n");
                 } else {
                     chatArea.appendText("Usage: /pm <username> <message>\n");
                 }
+            } else if (message.startsWith("/history")) {
+                // Older page from archive node
+                roomTasks.execute(() -> {
+                    if (client.loadOlderHistory() == 0) appendMessage("No older messages");
+                });
             } else if (message.startsWith("/clear")) {
                 chatArea.clear(); // Clear chat
             } else if (message.startsWith("/users")) {
                 chatArea.appendText("Users in room: " + String.join(", ", userList.getItems()) + "\n"); // List users
             } else {
-                client.sendMessage(message); // Normal message
+                reportFailure(client.sendMessage(message), "message"); // Normal message
             }
             inputField.clear(); // Clear input
         }
     }
 
 
+    /**
+     * Shows error if a send is not confirmed by the broker.
+     * @param send Send future
+     * @param what What was sent, for the error text
+     */
+    private void reportFailure(CompletableFuture<Void> send, String what) {
+        send.whenComplete((ignored, error) -> {
+            if (error != null) {
+                Platform.runLater(() -> LoginDialog.showError("Failed to send " + what + ": " + error.getMessage()));
+            }
+        });
+    }
+
     /**
      * Sets new client.
      * @param client New chat client
      */
     public void setClient(ChatClient client) {
         this.client = client;
+        this.ownMarker = client.getNickname() + ":";
     }
 
     /**
@@ -0,0 +1,136 @@
+/**
+ * @author Kostiantyn Feniuk
+ */
+
+package com.apokalist.telegram_mini;
+
+import com.rabbitmq.client.AMQP;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Ordering info carried in message headers.
+ *
+ * sid  - sender session id (nickname + session start)
+ * seq  - per-sender, per-room sequence, 0 for unsequenced classes
+ * hlc  - hybrid logical clock timestamp
+ * room - room name, lets resync replies arrive over the private queue
+ */
+public class Envelope {
+    public static final String SENDER = "sid";
+    public static final String SEQ = "seq";
+    public static final String HLC = "hlc";
+    public static final String ROOM = "room";
+
+    private static final int MAX_NAMES = 1024; // Cached sender and room names
+    private static final Map<Object, String> NAMES = new ConcurrentHashMap<>(); // Header value -> decoded name
+
+    private final String sender; // Sender session id
+    private final long seq; // Sequence, 0 if none
+    private final long hlc; // HLC timestamp
+    private final String room; // Room name, null for private
+
+    /**
+     * Constructor.
+     * @param sender Sender session id
+     * @param seq Sequence number, 0 if none
+     * @param hlc HLC timestamp
+     * @param room Room name or null
+     */
+    public Envelope(String sender, long seq, long hlc, String room) {
+        this.sender = sender;
+        this.seq = seq;
+        this.hlc = hlc;
+        this.room = room;
+    }
+
+    /**
+     * Reads envelope from delivery properties.
+     * @param props Delivery properties
+     * @return Envelope, or null if message has no envelope (older clients)
+     */
+    public static Envelope read(AMQP.BasicProperties props) {
+        if (props == null || props.getHeaders() == null) return null;
+        Map<String, Object> headers = props.getHeaders();
+        Object sender = headers.get(SENDER);
+        Object hlc = headers.get(HLC);
+        if (sender == null || !(hlc instanceof Number)) return null;
+
+        Object seq = headers.get(SEQ);
+        Object room = headers.get(ROOM);
+        return new Envelope(name(sender),
+                seq instanceof Number ? ((Number) seq).longValue() : 0,
+                ((Number) hlc).longValue(),
+                room != null ? name(room) : null);
+    }
+
+    /**
+     * Decodes a header name once. Header strings arrive as LongString,
+     * toString() would decode them again for every message.
+     * @param value Header value
+     * @return Decoded name, same instance for the same sender or room
+     */
+    private static String name(Object value) {
+        if (value instanceof String) return (String) value;
+        String name = NAMES.get(value);
+        if (name == null) {
+            if (NAMES.size() >= MAX_NAMES) NAMES.clear(); // Many short sessions, start over
+            name = value.toString();
+            NAMES.put(value, name);
+        }
+        return name;
+    }
+
+    /**
+     * Builds publish properties for a message class with this envelope.
+     * @param messageClass Message class (delivery policy)
+     * @return Basic properties
+     */
+    public AMQP.BasicProperties toProperties(MessageClass messageClass) {
+        // Compact immutable maps, headers are only read when the frame is written
+        Map<String, Object> headers;
+        if (seq > 0 && room != null) {
+            headers = Map.of(SENDER, sender, HLC, hlc, SEQ, seq, ROOM, room);
+        } else if (seq > 0) {
+            headers = Map.of(SENDER, sender, HLC, hlc, SEQ, seq);
+        } else if (room != null) {
+            headers = Map.of(SENDER, sender, HLC, hlc, ROOM, room);
+        } else {
+            headers = Map.of(SENDER, sender, HLC, hlc);
+        }
+        return messageClass.properties(headers);
+    }
+
+    /**
+     * Gets sender session id.
+     * @return Sender id
+     */
+    public String getSender() {
+        return sender;
+    }
+
+    /**
+     * Gets sequence number.
+     * @return Sequence, 0 if none
+     */
+    public long getSeq() {
+        return seq;
+    }
+
+    /**
+     * Gets HLC timestamp.
+     * @return Timestamp
+     */
+    public long getHlc() {
+        return hlc;
+    }
+
+    /**
+     * Gets room name.
+     * @return Room name, null for private messages
+     */
+    public String getRoom() {
+        return room;
+    }
+}
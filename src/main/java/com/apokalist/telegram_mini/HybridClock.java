@@ -0,0 +1,48 @@
+/**
+ * @author Kostiantyn Feniuk
+ */
+
+package com.apokalist.telegram_mini;
+
+/**
+ * Hybrid logical clock.
+ *
+ * Packs wall time in ms (high 48 bits) and a logical counter (low 16 bits)
+ * into one long, so timestamps compare with plain {@code <}.
+ * Always moves forward, even if the system clock goes back.
+ */
+public class HybridClock {
+    private static final int LOGICAL_BITS = 16;
+
+    private long last; // Last issued timestamp
+
+    /**
+     * Gets timestamp for a local event (send).
+     * @return New timestamp, greater than any seen before
+     */
+    public synchronized long tick() {
+        last = Math.max(last + 1, physicalNow());
+        return last;
+    }
+
+    /**
+     * Merges timestamp of a received message.
+     * @param remote Remote timestamp
+     */
+    public synchronized void update(long remote) {
+        last = Math.max(Math.max(last, remote) + 1, physicalNow());
+    }
+
+    /**
+     * Gets wall time part of a timestamp.
+     * @param hlc Timestamp
+     * @return Milliseconds since epoch
+     */
+    public static long physicalMillis(long hlc) {
+        return hlc >>> LOGICAL_BITS;
+    }
+
+    private static long physicalNow() {
+        return System.currentTimeMillis() << LOGICAL_BITS;
+    }
+}
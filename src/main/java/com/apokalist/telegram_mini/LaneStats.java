@@ -0,0 +1,137 @@
+/**
+ * @author Kostiantyn Feniuk
+ */
+
+package com.apokalist.telegram_mini;
+
+import java.util.Arrays;
+
+/**
+ * Latency per delivery lane, since the last reset.
+ *
+ * queue - from client publish to hand-off to a subscriber (client backlog)
+ * total - from sender wall time to hand-off (broker and client backlog,
+ *         only for events with an envelope, assumes synced clocks)
+ * Samples go into power-of-two millisecond buckets, so recording does not
+ * allocate. Percentiles are bucket upper bounds.
+ */
+public class LaneStats {
+    private static final int BUCKETS = 20; // Last bucket holds everything from 2^18 ms up
+
+    private final long[][] queue = new long[ChatEvent.Lane.values().length][BUCKETS];
+    private final long[][] total = new long[ChatEvent.Lane.values().length][BUCKETS];
+    private final long[] queueMax = new long[ChatEvent.Lane.values().length];
+    private long samples; // All lanes
+
+    /**
+     * Records hand-off of an event.
+     * @param event Event
+     * @param nowNanos System.nanoTime() at hand-off
+     * @param nowMillis System.currentTimeMillis() at hand-off
+     */
+    public synchronized void record(ChatEvent event, long nowNanos, long nowMillis) {
+        int lane = event.getLane().ordinal();
+        long queueMillis = (nowNanos - event.getCreatedNanos()) / 1_000_000;
+        queue[lane][bucket(queueMillis)]++;
+        queueMax[lane] = Math.max(queueMax[lane], queueMillis);
+        if (event.getSentMillis() > 0) {
+            total[lane][bucket(nowMillis - event.getSentMillis())]++;
+        }
+        samples++;
+    }
+
+    /**
+     * Gets number of events handed off in a lane.
+     * @param lane Lane
+     * @return Count
+     */
+    public synchronized long getCount(ChatEvent.Lane lane) {
+        return count(queue[lane.ordinal()]);
+    }
+
+    /**
+     * Gets queue latency percentile of a lane.
+     * @param lane Lane
+     * @param percentile 0..100
+     * @return Upper bound in ms, -1 if no samples
+     */
+    public synchronized long getQueuePercentile(ChatEvent.Lane lane, double percentile) {
+        return percentile(queue[lane.ordinal()], percentile);
+    }
+
+    /**
+     * Gets total (sender to hand-off) latency percentile of a lane.
+     * @param lane Lane
+     * @param percentile 0..100
+     * @return Upper bound in ms, -1 if no samples
+     */
+    public synchronized long getTotalPercentile(ChatEvent.Lane lane, double percentile) {
+        return percentile(total[lane.ordinal()], percentile);
+    }
+
+    /**
+     * Checks if anything was recorded since the last reset.
+     * @return true if there are samples
+     */
+    public synchronized boolean hasSamples() {
+        return samples > 0;
+    }
+
+    /**
+     * Formats one line per lane with samples.
+     * @return Summary, e.g. "private n=3 queue p50<=1 p99<=3 max=2 ms, total p99<=7 ms"
+     */
+    public synchronized String summary() {
+        StringBuilder text = new StringBuilder();
+        for (ChatEvent.Lane lane : ChatEvent.Lane.values()) {
+            int i = lane.ordinal();
+            long count = count(queue[i]);
+            if (count == 0) continue;
+            if (text.length() > 0) text.append(" | ");
+            text.append(lane.name().toLowerCase()).append(" n=").append(count)
+                    .append(" queue p50<=").append(Math.min(percentile(queue[i], 50), queueMax[i]))
+                    .append(" p99<=").append(Math.min(percentile(queue[i], 99), queueMax[i]))
+                    .append(" max=").append(queueMax[i]).append(" ms");
+            long totalP99 = percentile(total[i], 99);
+            if (totalP99 >= 0) {
+                text.append(", total p99<=").append(totalP99).append(" ms");
+            }
+        }
+        return text.toString();
+    }
+
+    /**
+     * Clears all samples.
+     */
+    public synchronized void reset() {
+        for (int i = 0; i < queue.length; i++) {
+            Arrays.fill(queue[i], 0);
+            Arrays.fill(total[i], 0);
+            queueMax[i] = 0;
+        }
+        samples = 0;
+    }
+
+    private static int bucket(long millis) {
+        if (millis <= 0) return 0;
+        return Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(millis)); // 1 -> 1, 2..3 -> 2, 4..7 -> 3
+    }
+
+    private static long count(long[] buckets) {
+        long count = 0;
+        for (long n : buckets) count += n;
+        return count;
+    }
+
+    private static long percentile(long[] buckets, double percentile) {
+        long count = count(buckets);
+        if (count == 0) return -1;
+        long rank = (long) Math.ceil(count * percentile / 100);
+        long seen = 0;
+        for (int b = 0; b < BUCKETS; b++) {
+            seen += buckets[b];
+            if (seen >= rank) return (1L << b) - 1; // Upper bound of bucket b
+        }
+        return (1L << (BUCKETS - 1)) - 1;
+    }
+}
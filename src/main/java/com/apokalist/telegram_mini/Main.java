@@ -1,8 +1,13 @@
 package com.apokalist.telegram_mini;
 
 import javafx.application.Application;
+import javafx.application.Platform;
 import javafx.stage.Stage;
 
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
 public class Main extends Application {
     @Override
     public void start(Stage primaryStage) {
@@ -19,14 +24,42 @@ public class Main extends Application {
                     return;
                 }
 
-                ChatClient client = new ChatClient(nickname, roomName, null);
-                ChatUI ui = new ChatUI(client, primaryStage);
-                client.setUI(ui);
-                client.connect();
-                System.out.println("Connected to RabbitMQ, showing UI...");
+                StartupTrace trace = new StartupTrace();
+                ChatClient client = new ChatClient(nickname, roomName);
+                ChatUI ui = new ChatUI(client, primaryStage); // Subscribes to client events
+
+                // Show UI right away, input stays disabled until connected
                 ui.show();
+                trace.mark("stage shown");
+                trace.traceFirstPaint(primaryStage.getScene());
+
+                // Chat connection (with history) and room directory connect in parallel, off the FX thread
+                ExecutorService startup = Executors.newFixedThreadPool(2, runnable -> {
+                    Thread thread = new Thread(runnable, "startup");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+                CompletableFuture<Boolean> chat = CompletableFuture.supplyAsync(() -> {
+                    boolean connected = client.connect();
+                    trace.mark(connected ? "chat connected, history loaded" : "chat connection failed");
+                    return connected;
+                }, startup);
+                CompletableFuture<Void> rooms = CompletableFuture.runAsync(() -> {
+                    ui.getRoomManager().connect();
+                    trace.mark("room directory connected");
+                    ui.getRoomManager().announceRoom(roomName);
+                }, startup);
+                startup.shutdown(); // Threads exit after both tasks
 
-                ui.getRoomManager().announceRoom(roomName);
+                // Input only after the chat is connected, the error is already shown otherwise
+                CompletableFuture.allOf(chat, rooms).whenComplete((ignored, error) -> {
+                    boolean connected = chat.handle((ok, failure) -> Boolean.TRUE.equals(ok)).join();
+                    if (!connected) return;
+                    Platform.runLater(() -> {
+                        ui.setInteractive(true);
+                        trace.markInteractive();
+                    });
+                });
             });
         } catch (Exception e) {
             e.printStackTrace();
@@ -0,0 +1,108 @@
+/**
+ * @author Kostiantyn Feniuk
+ */
+
+package com.apokalist.telegram_mini;
+
+import com.rabbitmq.client.AMQP;
+
+import java.util.Map;
+
+/**
+ * Message classes with their own delivery policy.
+ *
+ * Chat and private messages are persistent, everything else is
+ * transient and expires in the queue after its TTL. Everything except
+ * chat is sent with priority 1, so it overtakes a chat backlog in
+ * priority room queues.
+ */
+public enum MessageClass {
+    CHAT(true, 0, 0), // Room chat, survives broker restart
+    PRIVATE(true, 0, 1), // Direct messages
+    PRESENCE(false, 60_000, 1), // Join/leave notices
+    TYPING(false, 5_000, 1), // "user is typing..." indicators
+    RESYNC(false, 30_000, 1); // Request for a missing sequence range
+
+    public static final int MAX_PRIORITY = 1; // x-max-priority of room queues
+
+    private final boolean persistent; // deliveryMode 2 or 1
+    private final long ttlMillis; // Per-message TTL, 0 = none
+    private final int priority; // Broker priority, 0..MAX_PRIORITY
+    private final AMQP.BasicProperties properties; // Cached, properties are immutable
+
+    MessageClass(boolean persistent, long ttlMillis, int priority) {
+        this.persistent = persistent;
+        this.ttlMillis = ttlMillis;
+        this.priority = priority;
+
+        AMQP.BasicProperties.Builder builder = new AMQP.BasicProperties.Builder()
+                .type(name())
+                .priority(priority)
+                .deliveryMode(persistent ? 2 : 1); // persistent (2)  transient (1)
+        if (ttlMillis > 0) {
+            builder.expiration(String.valueOf(ttlMillis));
+        }
+        this.properties = builder.build();
+    }
+
+    /**
+     * Gets publish properties for this class.
+     * @return Basic properties
+     */
+    public AMQP.BasicProperties properties() {
+        return properties;
+    }
+
+    /**
+     * Gets publish properties for this class with message headers.
+     * Copies cached fields directly, without a builder per message.
+     * @param headers Message headers
+     * @return Basic properties
+     */
+    public AMQP.BasicProperties properties(Map<String, Object> headers) {
+        return new AMQP.BasicProperties(properties.getContentType(), properties.getContentEncoding(), headers,
+                properties.getDeliveryMode(), properties.getPriority(), properties.getCorrelationId(),
+                properties.getReplyTo(), properties.getExpiration(), properties.getMessageId(),
+                properties.getTimestamp(), properties.getType(), properties.getUserId(),
+                properties.getAppId(), properties.getClusterId());
+    }
+
+    /**
+     * Checks if messages are written to disk by the broker.
+     * @return true for persistent delivery
+     */
+    public boolean isPersistent() {
+        return persistent;
+    }
+
+    /**
+     * Gets per-message TTL.
+     * @return TTL in milliseconds, 0 if none
+     */
+    public long getTtlMillis() {
+        return ttlMillis;
+    }
+
+    /**
+     * Gets broker priority.
+     * @return Priority, higher is delivered first
+     */
+    public int getPriority() {
+        return priority;
+    }
+
+    /**
+     * Resolves class of a received message.
+     * Messages without a type (older clients) are treated as chat.
+     * @param props Delivery properties
+     * @return Message class
+     */
+    public static MessageClass of(AMQP.BasicProperties props) {
+        if (props == null || props.getType() == null) return CHAT;
+        try {
+            return valueOf(props.getType());
+        } catch (IllegalArgumentException e) {
+            return CHAT;
+        }
+    }
+}
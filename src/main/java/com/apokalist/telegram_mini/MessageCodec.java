@@ -0,0 +1,126 @@
+/**
+ * @author Kostiantyn Feniuk
+ */
+
+package com.apokalist.telegram_mini;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
+
+/**
+ * Formats and encodes message bodies.
+ *
+ * Text is built and encoded in per-thread buffers, so a send allocates
+ * only the final byte array (no intermediate String, formatter or char copy).
+ * Bodies stay as bytes until shown, decode() is called only for rendering.
+ */
+public final class MessageCodec {
+    private static final DateTimeFormatter TIME = DateTimeFormatter.ofPattern("HH:mm:ss"); // Immutable, shared
+    private static final int INITIAL_CHARS = 256;
+    private static final int MAX_POOLED_CHARS = 16_384; // Longer texts are not kept in the pool
+    private static final ThreadLocal<Buffers> BUFFERS = ThreadLocal.withInitial(Buffers::new);
+
+    /**
+     * Reusable buffers of one thread.
+     */
+    private static class Buffers {
+        final StringBuilder text = new StringBuilder(INITIAL_CHARS);
+        final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE) // Same as String.getBytes
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        char[] chars;
+        CharBuffer in;
+        ByteBuffer out;
+
+        Buffers() {
+            resize(INITIAL_CHARS);
+        }
+
+        void resize(int capacity) {
+            chars = new char[capacity];
+            in = CharBuffer.wrap(chars);
+            out = ByteBuffer.allocate(capacity * 3); // UTF-8 needs at most 3 bytes per char
+        }
+    }
+
+    private MessageCodec() {
+    }
+
+    /**
+     * Encodes a chat message: "[HH:mm:ss] nickname: message".
+     * @param nickname Sender nickname
+     * @param message Message text
+     * @return UTF-8 body
+     */
+    public static byte[] chat(String nickname, String message) {
+        return encode(start().append(nickname).append(": ").append(message));
+    }
+
+    /**
+     * Encodes a private message: "[HH:mm:ss] [Private from nickname] message".
+     * @param nickname Sender nickname
+     * @param message Message text
+     * @return UTF-8 body
+     */
+    public static byte[] privateMessage(String nickname, String message) {
+        return encode(start().append("[Private from ").append(nickname).append("] ").append(message));
+    }
+
+    /**
+     * Encodes a system notice: "[HH:mm:ss] System: message".
+     * @param message Notice text
+     * @return UTF-8 body
+     */
+    public static byte[] system(String message) {
+        return encode(start().append("System: ").append(message));
+    }
+
+    /**
+     * Decodes a body for rendering.
+     * @param body UTF-8 body
+     * @return Text
+     */
+    public static String decode(byte[] body) {
+        return new String(body, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Starts a message in the thread's builder with the current time.
+     */
+    private static StringBuilder start() {
+        StringBuilder text = BUFFERS.get().text;
+        text.setLength(0);
+        text.append('[');
+        TIME.formatTo(LocalTime.now(), text);
+        return text.append("] ");
+    }
+
+    /**
+     * Encodes the thread's builder into an exactly sized array.
+     */
+    private static byte[] encode(StringBuilder text) {
+        int length = text.length();
+        if (length > MAX_POOLED_CHARS) {
+            return text.toString().getBytes(StandardCharsets.UTF_8);
+        }
+
+        Buffers buffers = BUFFERS.get();
+        if (buffers.chars.length < length) {
+            buffers.resize(Math.min(MAX_POOLED_CHARS, Math.max(length, buffers.chars.length * 2)));
+        }
+        text.getChars(0, length, buffers.chars, 0);
+        buffers.in.clear().limit(length);
+        buffers.out.clear();
+
+        CharsetEncoder encoder = buffers.encoder.reset();
+        encoder.encode(buffers.in, buffers.out, true);
+        encoder.flush(buffers.out);
+        return Arrays.copyOf(buffers.out.array(), buffers.out.position());
+    }
+}
@@ -0,0 +1,351 @@
+/**
+ * @author Kostiantyn Feniuk
+ */
+
+package com.apokalist.telegram_mini;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.function.IntConsumer;
+import java.util.function.LongConsumer;
+
+/**
+ * Flow.Publisher of ChatClient events, honors subscriber demand.
+ *
+ * A delivery is acked once onNext returned for it in every subscriber, so
+ * a subscriber that requests Long.MAX_VALUE once gets everything acked.
+ * Events wait unacked only while there is no demand, and prefetch follows
+ * the smallest outstanding demand, so a slow subscriber slows down the
+ * broker instead of growing a buffer. onNext runs on the RabbitMQ consumer
+ * thread or on the thread that calls request, it should not block.
+ *
+ * Waiting events are kept per lane (see ChatEvent.Lane) and handed out by
+ * weighted round robin, so a room backlog does not hold back private
+ * messages and control events. Order is kept within a lane. Hand-off
+ * latency per lane is logged every LOG_INTERVAL_MS.
+ */
+public class MessagePublisher implements Flow.Publisher<ChatEvent> {
+    public static final int INITIAL_PREFETCH = 100; // Before any demand
+    private static final int MIN_PREFETCH = 10;
+    private static final int MAX_PREFETCH = 1000;
+    private static final long LOG_INTERVAL_MS = 10_000; // Lane latency log
+
+    private volatile Subscription[] subscriptions = new Subscription[0]; // Active, replaced on change, read without copying
+    private final IntConsumer onPrefetch; // Applies new prefetch
+    private int prefetch = INITIAL_PREFETCH; // Last applied prefetch
+    private final LaneStats laneStats = new LaneStats(); // Since last log
+    private long lastLaneLog = System.currentTimeMillis(); // Guarded by laneStats
+
+    /**
+     * Event with its delivery, shared by all subscriptions.
+     */
+    private static class Item {
+        private static final AtomicIntegerFieldUpdater<Item> REMAINING =
+                AtomicIntegerFieldUpdater.newUpdater(Item.class, "remaining"); // No AtomicInteger per event
+
+        final ChatEvent event;
+        final long deliveryTag; // -1 if nothing to ack
+        final LongConsumer ack; // Acks on the channel it came from
+        volatile int remaining; // Subscribers that did not confirm yet
+
+        Item(ChatEvent event, long deliveryTag, LongConsumer ack, int subscribers) {
+            this.event = event;
+            this.deliveryTag = deliveryTag;
+            this.ack = ack;
+            this.remaining = subscribers;
+        }
+
+        void confirm() {
+            if (REMAINING.decrementAndGet(this) == 0 && deliveryTag >= 0) {
+                ack.accept(deliveryTag);
+            }
+        }
+    }
+
+    /**
+     * Waiting events of one lane.
+     */
+    private static class LaneQueue {
+        final ArrayDeque<Item> items = new ArrayDeque<>();
+        final int weight; // Events per round
+        int credit; // Events left in this round
+
+        LaneQueue(int weight) {
+            this.weight = weight;
+            this.credit = weight;
+        }
+    }
+
+    /**
+     * Constructor.
+     * @param onPrefetch Applies new prefetch
+     */
+    public MessagePublisher(IntConsumer onPrefetch) {
+        this.onPrefetch = onPrefetch;
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super ChatEvent> subscriber) {
+        Subscription subscription = new Subscription(subscriber);
+        synchronized (this) {
+            Subscription[] current = subscriptions;
+            Subscription[] next = Arrays.copyOf(current, current.length + 1);
+            next[current.length] = subscription;
+            subscriptions = next;
+        }
+        subscriber.onSubscribe(subscription);
+    }
+
+    /**
+     * Publishes an event without a delivery to ack.
+     * @param event Event
+     */
+    public void publish(ChatEvent event) {
+        publish(event, -1, null);
+    }
+
+    /**
+     * Publishes an event to all subscribers.
+     * Without subscribers the event is dropped and the delivery acked.
+     * @param event Event
+     * @param deliveryTag Delivery to ack once confirmed, -1 if none
+     * @param ack Acks the tag on its channel
+     */
+    public void publish(ChatEvent event, long deliveryTag, LongConsumer ack) {
+        Subscription[] current = subscriptions;
+        if (current.length == 0) {
+            if (deliveryTag >= 0) ack.accept(deliveryTag);
+            return;
+        }
+
+        Item item = new Item(event, deliveryTag, ack, current.length);
+        for (Subscription subscription : current) {
+            subscription.enqueue(item);
+        }
+    }
+
+    /**
+     * Completes all subscriptions (client closed). Waiting events are
+     * dropped without acks, later request calls do nothing. onComplete
+     * goes through the drain loop, after an onNext in progress returns.
+     */
+    public void complete() {
+        Subscription[] current;
+        synchronized (this) {
+            current = subscriptions;
+            subscriptions = new Subscription[0];
+        }
+        for (Subscription subscription : current) {
+            subscription.complete();
+        }
+    }
+
+    /**
+     * Removes a subscription.
+     * @param subscription Cancelled subscription
+     */
+    private synchronized void remove(Subscription subscription) {
+        Subscription[] current = subscriptions;
+        for (int i = 0; i < current.length; i++) {
+            if (current[i] == subscription) {
+                Subscription[] next = new Subscription[current.length - 1];
+                System.arraycopy(current, 0, next, 0, i);
+                System.arraycopy(current, i + 1, next, i, current.length - i - 1);
+                subscriptions = next;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Gets hand-off latency per lane since the last log line.
+     * @return Lane stats
+     */
+    public LaneStats getLaneStats() {
+        return laneStats;
+    }
+
+    /**
+     * Records hand-off latency, logs a summary once per interval.
+     * @param event Event handed to a subscriber
+     */
+    private void recordLatency(ChatEvent event) {
+        long now = System.currentTimeMillis();
+        String summary = null;
+        synchronized (laneStats) {
+            laneStats.record(event, System.nanoTime(), now);
+            if (now - lastLaneLog >= LOG_INTERVAL_MS) {
+                summary = laneStats.summary();
+                laneStats.reset();
+                lastLaneLog = now;
+            }
+        }
+        if (summary != null) System.out.println("[lanes] " + summary);
+    }
+
+    /**
+     * Gets prefetch for the current demand. Demand may come before there is
+     * a channel to apply it to, so the channel takes this value when it opens.
+     * @return Unacked deliveries allowed
+     */
+    public synchronized int getPrefetch() {
+        return prefetch;
+    }
+
+    /**
+     * Sets prefetch to the smallest outstanding demand.
+     */
+    private void updatePrefetch() {
+        long demand = Long.MAX_VALUE;
+        Subscription[] current = subscriptions;
+        if (current.length == 0) return;
+        for (Subscription subscription : current) {
+            demand = Math.min(demand, subscription.demand());
+        }
+
+        int newPrefetch = (int) Math.max(MIN_PREFETCH, Math.min(MAX_PREFETCH, demand));
+        synchronized (this) {
+            if (Math.abs(newPrefetch - prefetch) < prefetch / 4) return; // Avoid qos on every request
+            prefetch = newPrefetch;
+        }
+        onPrefetch.accept(newPrefetch);
+    }
+
+    /**
+     * Subscription with its own buffer and demand.
+     */
+    private class Subscription implements Flow.Subscription {
+        private final Flow.Subscriber<? super ChatEvent> subscriber;
+        private final LaneQueue[] lanes = new LaneQueue[ChatEvent.Lane.values().length]; // Not delivered yet, by lane
+        private final AtomicInteger wip = new AtomicInteger(); // Serializes onNext calls
+        private long demand; // Requested, not delivered yet, Long.MAX_VALUE = unbounded
+        private boolean cancelled;
+        private boolean completed; // onComplete pending or signalled
+        private boolean completeSignalled;
+
+        Subscription(Flow.Subscriber<? super ChatEvent> subscriber) {
+            this.subscriber = subscriber;
+            for (ChatEvent.Lane lane : ChatEvent.Lane.values()) {
+                lanes[lane.ordinal()] = new LaneQueue(lane.getWeight());
+            }
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                cancel();
+                subscriber.onError(new IllegalArgumentException("request must be positive: " + n));
+                return;
+            }
+
+            synchronized (this) {
+                if (cancelled) return;
+                demand = demand + n < 0 ? Long.MAX_VALUE : demand + n; // Overflow means unbounded
+            }
+
+            updatePrefetch();
+            drain();
+        }
+
+        @Override
+        public void cancel() {
+            ArrayDeque<Item> confirmed = new ArrayDeque<>();
+            synchronized (this) {
+                if (cancelled) return;
+                cancelled = true;
+                for (LaneQueue lane : lanes) {
+                    confirmed.addAll(lane.items);
+                    lane.items.clear();
+                }
+            }
+            remove(this);
+            for (Item item : confirmed) {
+                item.confirm(); // Do not hold acks of other subscribers
+            }
+        }
+
+        /**
+         * Stops the subscription without acking, the channel is closing.
+         * onComplete is signalled by the drain loop, serial with onNext.
+         */
+        void complete() {
+            synchronized (this) {
+                if (cancelled) return;
+                cancelled = true;
+                completed = true;
+                for (LaneQueue lane : lanes) {
+                    lane.items.clear();
+                }
+            }
+            drain();
+        }
+
+        void enqueue(Item item) {
+            synchronized (this) {
+                if (cancelled) {
+                    item.confirm();
+                    return;
+                }
+                lanes[item.event.getLane().ordinal()].items.addLast(item);
+            }
+            drain();
+        }
+
+        /**
+         * Takes next item by weighted round robin: lanes in priority order,
+         * each up to its weight per round. A lane alone gets every turn.
+         * @return Item, null if all lanes are empty
+         */
+        private Item next() {
+            for (int round = 0; round < 2; round++) {
+                for (LaneQueue lane : lanes) {
+                    if (lane.credit > 0 && !lane.items.isEmpty()) {
+                        lane.credit--;
+                        return lane.items.pollFirst();
+                    }
+                }
+                for (LaneQueue lane : lanes) {
+                    lane.credit = lane.weight; // Lanes with items are out of credit, new round
+                }
+            }
+            return null;
+        }
+
+        synchronized long demand() {
+            return demand;
+        }
+
+        private void drain() {
+            if (wip.getAndIncrement() != 0) return; // Another thread is draining
+
+            int missed = 1;
+            do {
+                while (true) {
+                    Item item;
+                    synchronized (this) {
+                        if (cancelled || demand == 0) break;
+                        item = next();
+                        if (item == null) break;
+                        if (demand != Long.MAX_VALUE) demand--;
+                    }
+                    recordLatency(item.event);
+                    try {
+                        subscriber.onNext(item.event);
+                    } finally {
+                        item.confirm(); // Handed off, ack only buffers the tag
+                    }
+                }
+                boolean signal;
+                synchronized (this) {
+                    signal = completed && !completeSignalled;
+                    completeSignalled |= signal;
+                }
+                if (signal) subscriber.onComplete();
+                missed = wip.addAndGet(-missed);
+            } while (missed != 0);
+        }
+    }
+}
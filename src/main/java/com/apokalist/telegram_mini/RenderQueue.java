@@ -0,0 +1,384 @@
+/**
+ * @author Kostiantyn Feniuk
+ */
+
+package com.apokalist.telegram_mini;
+
+import javafx.application.Platform;
+
+import java.time.LocalTime;
+import java.util.ArrayDeque;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
+
+/**
+ * Queue between ChatClient events and the FX thread.
+ *
+ * Renders in batches with a time budget per pass, so input events get a
+ * chance between passes. Reports how many events were rendered, so the UI
+ * requests more only after rendering. Credit follows the measured drain
+ * rate and is the UI's demand window (and through it the broker prefetch),
+ * so the broker never sends much more than the UI can show. Drain rate is
+ * rendered messages over wall time between passes, so FX work between
+ * passes (layout, paint) counts too.
+ *
+ * Pending messages are bounded by the credit, so a flood waits in the
+ * broker, not here. Degraded mode therefore triggers on lag: a message
+ * arriving more than chat.ui.maxLagMs after it was sent (broker and client
+ * backlog, assumes synced clocks) or waiting that long since receipt, or
+ * more than chat.ui.maxLag messages pending (clamped below MAX_CREDIT).
+ * In degraded mode old pending messages are collapsed into "N more
+ * messages" and room counters are refreshed at most once per second. Urgent messages (private, join/leave
+ * notices) are rendered first in each pass and never collapsed. They may
+ * overtake a redraw that does not contain them yet, so the last
+ * MAX_RECENT_URGENT are kept and put back after a redraw that misses them;
+ * ones the redraw already has are not rendered twice.
+ */
+public class RenderQueue {
+    private static final long MAX_LAG_MS = Long.getLong("chat.ui.maxLagMs", 2000); // Message lag before degraded mode
+    private static final long TARGET_LATENCY_MS = Long.getLong("chat.ui.targetLatencyMs", 250); // Credit = rate * latency
+    private static final long PASS_BUDGET_NS = 8_000_000; // Render time per FX pass
+    private static final int DEGRADED_TAIL = 20; // Messages still rendered in degraded mode
+    private static final long DEGRADED_REFRESH_MS = 1000; // Room counter sampling in degraded mode
+    public static final int INITIAL_CREDIT = MessagePublisher.INITIAL_PREFETCH; // Credit before first measurement
+    private static final int MIN_CREDIT = 10;
+    private static final int MAX_CREDIT = 1000;
+    private static final int MAX_RECENT_URGENT = 100; // Urgent messages kept for redraws
+    private static final int MAX_LAG = maxLag(); // Pending messages before degraded mode
+    private static final long MAX_PASS_INTERVAL_NS = 1_000_000_000; // Longer gap = idle, not measured
+
+    private final Consumer<String> renderer; // Renders one message
+    private final Consumer<List<String>> redrawer; // Renders whole history
+    private final Runnable afterBatch; // Scroll, notify
+    private final Runnable roomsRenderer; // Refreshes room counters
+    private final IntConsumer onRendered; // Counted items done (rendered, collapsed or replaced)
+    private final IntConsumer onCredit; // Applies new credit
+
+    private final ArrayDeque<Pending> pending = new ArrayDeque<>(); // Waiting for FX thread
+    private final ArrayDeque<Pending> urgent = new ArrayDeque<>(); // Rendered before pending
+    private final ArrayDeque<String> recentUrgent = new ArrayDeque<>(); // Rendered, not in a redraw yet (FX thread)
+    private List<String> redraw; // Pending full redraw
+    private int redrawCounted; // Counted items behind the pending redraw
+    private boolean roomsDirty; // Room counters changed
+    private boolean scheduled; // Drain pass queued on FX thread
+    private long lastRoomsRefresh; // For sampling in degraded mode
+
+    private double drainRate; // Messages per second, smoothed
+    private long lastPassStart; // nanoTime of the previous pass, 0 if none
+    private long lastLagMillis; // Lag of the last rendered message
+    private int credit = INITIAL_CREDIT; // Current credit
+    private boolean degraded; // Degraded mode on
+    private LocalTime degradedSince; // When degraded mode was last triggered
+    private int degradedCount; // How many times it was triggered
+
+    /**
+     * Message waiting for render. Bodies from the client stay as bytes
+     * until the FX thread renders them, collapsed ones are never decoded.
+     */
+    private static class Pending {
+        final byte[] body; // UTF-8 text, null for local messages
+        String text; // Local message, or decoded body
+        final boolean counted; // Reported in onRendered
+        final boolean urgent; // Kept across redraws
+        final long createdNanos; // Received by the client
+        final long sentMillis; // Sender wall time, 0 if unknown
+
+        Pending(byte[] body, String text, boolean counted, boolean urgent, long createdNanos, long sentMillis) {
+            this.body = body;
+            this.text = text;
+            this.counted = counted;
+            this.urgent = urgent;
+            this.createdNanos = createdNanos;
+            this.sentMillis = sentMillis;
+        }
+
+        /**
+         * Gets how far behind the message is: since sent if known, at least since received.
+         */
+        long lagMillis(long nowNanos, long nowMillis) {
+            long lag = (nowNanos - createdNanos) / 1_000_000;
+            if (sentMillis > 0) lag = Math.max(lag, nowMillis - sentMillis);
+            return lag;
+        }
+
+        String text() {
+            if (text == null) text = MessageCodec.decode(body);
+            return text;
+        }
+    }
+
+    /**
+     * Constructor.
+     * @param renderer Renders one message (FX thread)
+     * @param redrawer Renders whole history (FX thread)
+     * @param afterBatch Called after a pass rendered something (FX thread)
+     * @param roomsRenderer Refreshes room counters (FX thread)
+     * @param onRendered Gets number of counted items done (FX thread)
+     * @param onCredit Applies new credit
+     */
+    public RenderQueue(Consumer<String> renderer, Consumer<List<String>> redrawer, Runnable afterBatch,
+                       Runnable roomsRenderer, IntConsumer onRendered, IntConsumer onCredit) {
+        this.renderer = renderer;
+        this.redrawer = redrawer;
+        this.afterBatch = afterBatch;
+        this.roomsRenderer = roomsRenderer;
+        this.onRendered = onRendered;
+        this.onCredit = onCredit;
+    }
+
+    /**
+     * Queues a local message for render. Any thread.
+     * @param text Message text
+     * @param counted true to report it in onRendered (came from the event stream)
+     */
+    public void submit(String text, boolean counted) {
+        submit(new Pending(null, text, counted, false, System.nanoTime(), 0));
+    }
+
+    /**
+     * Queues a message event for render, body decoded on the FX thread.
+     * Counted in onRendered. Any thread.
+     * @param event MESSAGE event
+     */
+    public void submit(ChatEvent event) {
+        submit(new Pending(event.getBody(), null, true, false, event.getCreatedNanos(), event.getSentMillis()));
+    }
+
+    private synchronized void submit(Pending message) {
+        pending.addLast(message);
+        if (!degraded) {
+            long lag = message.lagMillis(System.nanoTime(), System.currentTimeMillis());
+            if (lag > MAX_LAG_MS || pending.size() > MAX_LAG) {
+                degraded = true;
+                degradedSince = LocalTime.now();
+                degradedCount++;
+                System.out.println("[backpressure] degraded mode on at " + degradedSince + ", lag " + lag + " ms, "
+                        + pending.size() + " pending, drain rate " + (int) drainRate + " msg/s");
+            }
+        }
+        schedule();
+    }
+
+    /**
+     * Queues a message event ahead of room messages, body decoded on the FX thread.
+     * Counted in onRendered. Any thread.
+     * @param event NOTICE or PRIVATE event
+     */
+    public synchronized void submitUrgent(ChatEvent event) {
+        urgent.addLast(new Pending(event.getBody(), null, true, true, event.getCreatedNanos(), event.getSentMillis()));
+        schedule();
+    }
+
+    /**
+     * Replaces chat with full history. Pending messages are already in it. Any thread.
+     * @param history Messages in order
+     * @param counted true to report it in onRendered (came from the event stream)
+     */
+    public synchronized void submitRedraw(List<String> history, boolean counted) {
+        for (Pending message : pending) {
+            if (message.counted) redrawCounted++;
+        }
+        pending.clear();
+        if (counted) redrawCounted++;
+        redraw = history;
+        schedule();
+    }
+
+    /**
+     * Marks room counters as changed. Any thread.
+     */
+    public synchronized void roomsChanged() {
+        roomsDirty = true;
+        if (!degraded) schedule();
+    }
+
+    private void schedule() {
+        if (!scheduled) {
+            scheduled = true;
+            Platform.runLater(this::drain);
+        }
+    }
+
+    /**
+     * One render pass on the FX thread.
+     */
+    private void drain() {
+        long start = System.nanoTime();
+        int done = 0; // Counted items
+        List<String> redrawNow;
+        int skipped = 0;
+        boolean refreshRooms;
+
+        synchronized (this) {
+            redrawNow = redraw;
+            redraw = null;
+            done += redrawCounted;
+            redrawCounted = 0;
+
+            // Degraded: collapse everything but the tail
+            if (degraded) {
+                while (pending.size() > DEGRADED_TAIL) {
+                    Pending message = pending.pollFirst();
+                    if (message.counted) done++;
+                    skipped++;
+                }
+            }
+
+            long now = System.currentTimeMillis();
+            refreshRooms = roomsDirty && (!degraded || now - lastRoomsRefresh >= DEGRADED_REFRESH_MS);
+            if (refreshRooms) {
+                roomsDirty = false;
+                lastRoomsRefresh = now;
+            }
+        }
+
+        if (redrawNow != null) {
+            redrawer.accept(redrawNow);
+            done += restoreUrgent(redrawNow);
+        }
+        if (skipped > 0) renderer.accept("... " + skipped + " more messages");
+
+        int rendered = 0;
+        long lastLag = -1; // Of the last rendered room message
+        while (System.nanoTime() - start < PASS_BUDGET_NS) {
+            Pending message;
+            synchronized (this) {
+                message = urgent.isEmpty() ? pending.pollFirst() : urgent.pollFirst();
+            }
+            if (message == null) break;
+            String text = message.text(); // Decoded here, outside the lock
+            renderer.accept(text);
+            if (message.counted) done++;
+            rendered++;
+            if (message.urgent) {
+                rememberUrgent(text);
+            } else {
+                lastLag = message.lagMillis(System.nanoTime(), System.currentTimeMillis());
+            }
+        }
+
+        if (refreshRooms) roomsRenderer.run();
+        if (rendered > 0 || skipped > 0 || redrawNow != null) afterBatch.run();
+        if (done > 0) onRendered.accept(done);
+
+        synchronized (this) {
+            // Rendered since the previous pass started, over the wall time in between
+            long interval = start - lastPassStart;
+            if (rendered > 0 && lastPassStart != 0 && interval > 0 && interval < MAX_PASS_INTERVAL_NS) {
+                double rate = rendered * 1e9 / interval;
+                drainRate = drainRate == 0 ? rate : drainRate * 0.8 + rate * 0.2;
+            }
+            lastPassStart = start;
+            if (lastLag >= 0) lastLagMillis = lastLag;
+
+            if (degraded && pending.size() < MAX_LAG / 4 && lastLagMillis < MAX_LAG_MS / 2) {
+                degraded = false;
+                System.out.println("[backpressure] degraded mode off at " + LocalTime.now() + " (on since " + degradedSince + ")");
+            }
+
+            scheduled = false;
+            if (!pending.isEmpty() || !urgent.isEmpty() || redraw != null || roomsDirty) {
+                schedule(); // Next pass after pending input events
+            }
+        }
+
+        adaptCredit();
+    }
+
+    /**
+     * After a redraw: puts back rendered urgent messages it misses and
+     * drops queued ones it already has (FX thread).
+     * @param history Redrawn messages
+     * @return Counted items dropped from the urgent queue
+     */
+    private int restoreUrgent(List<String> history) {
+        Set<String> redrawn = new HashSet<>(history);
+        int done = 0;
+        synchronized (this) {
+            for (Iterator<Pending> it = urgent.iterator(); it.hasNext(); ) {
+                Pending message = it.next();
+                if (redrawn.contains(message.text())) {
+                    it.remove();
+                    if (message.counted) done++;
+                }
+            }
+        }
+        for (Iterator<String> it = recentUrgent.iterator(); it.hasNext(); ) {
+            String text = it.next();
+            if (redrawn.contains(text)) {
+                it.remove(); // History has it from now on
+            } else {
+                renderer.accept(text);
+            }
+        }
+        return done;
+    }
+
+    private void rememberUrgent(String text) {
+        recentUrgent.addLast(text);
+        if (recentUrgent.size() > MAX_RECENT_URGENT) recentUrgent.removeFirst();
+    }
+
+    /**
+     * Sets credit to what the UI drains in TARGET_LATENCY_MS.
+     */
+    private void adaptCredit() {
+        int newCredit;
+        synchronized (this) {
+            if (drainRate == 0) return;
+            newCredit = (int) Math.max(MIN_CREDIT, Math.min(MAX_CREDIT, drainRate * TARGET_LATENCY_MS / 1000));
+            if (Math.abs(newCredit - credit) < credit / 4) return; // Small changes do not matter
+            credit = newCredit;
+        }
+        onCredit.accept(newCredit);
+    }
+
+    /**
+     * Reads chat.ui.maxLag. Pending messages never exceed the credit, so a
+     * limit at or above MAX_CREDIT would never trigger; it is clamped below.
+     */
+    private static int maxLag() {
+        int maxLag = Integer.getInteger("chat.ui.maxLag", 500);
+        int clamped = Math.max(MIN_CREDIT, Math.min(MAX_CREDIT / 2, maxLag));
+        if (clamped != maxLag) {
+            System.err.println("[backpressure] chat.ui.maxLag=" + maxLag + " clamped to " + clamped);
+        }
+        return clamped;
+    }
+
+    /**
+     * Checks if degraded mode is on.
+     * @return true if degraded
+     */
+    public synchronized boolean isDegraded() {
+        return degraded;
+    }
+
+    /**
+     * Gets when degraded mode was last triggered.
+     * @return Time, null if never
+     */
+    public synchronized LocalTime getDegradedSince() {
+        return degradedSince;
+    }
+
+    /**
+     * Gets how many times degraded mode was triggered.
+     * @return Count
+     */
+    public synchronized int getDegradedCount() {
+        return degradedCount;
+    }
+
+    /**
+     * Gets measured drain rate.
+     * @return Messages per second
+     */
+    public synchronized double getDrainRate() {
+        return drainRate;
+    }
+}
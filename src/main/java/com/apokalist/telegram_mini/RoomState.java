@@ -0,0 +1,472 @@
+/**
+ * @author Kostiantyn Feniuk
+ */
+
+package com.apokalist.telegram_mini;
+
+import com.rabbitmq.client.AMQP;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+
+/**
+ * State of one subscribed room.
+ *
+ * Open room keeps ordered history (bodies stay bytes until rendered).
+ * Background room keeps only an unread counter and a small tail of raw
+ * deliveries, merged into history when the room is opened.
+ */
+public class RoomState {
+    public static final int TAIL_SIZE = 50; // Raw deliveries kept for a background room
+    public static final int MAX_HISTORY = 1000; // Open room history, older pages come back through /history
+    private static final int HISTORY_SLACK = 100; // Trimmed in batches, not on every message
+    private static final int OUTBOX_SIZE = 256; // Sent messages kept for resync requests
+    private static final int MAX_SEEN_IDS = 4096; // Unsequenced ids kept for dedup, oldest go first
+
+    private final String name; // Room name (ROUTING KEY)
+    private final String queueName; // Exclusive room queue of this connection
+    private String consumerTag; // Consumer tag
+    private final RoomStream stream = new RoomStream(); // Gap and duplicate detection
+    private final Set<String> seenIds = Collections.newSetFromMap(new LinkedHashMap<>() { // sender/hlc of unsequenced messages
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+            return size() > MAX_SEEN_IDS; // Redeliveries come soon after, not hours later
+        }
+    });
+    private final List<ChatMessage> history = new ArrayList<>(); // History, in HLC order
+    private final ArrayDeque<Raw> tail = new ArrayDeque<>(); // Unparsed deliveries while in background
+    private final Map<String, Long> droppedFrom = new HashMap<>(); // Sender -> lowest seq dropped from tail
+    private final ArrayDeque<Outgoing> outbox = new ArrayDeque<>(); // Recent sent chat messages
+    private long nextSeq = 1; // Next sequence for chat messages
+    private int unread; // Chat messages received in background
+    private long oldestArchiveId; // Oldest archive id loaded, 0 if none
+    private int historyLimit = MAX_HISTORY; // Grows with /history pages, reset on close
+    private boolean open; // Shown in UI
+
+    /**
+     * Raw delivery, envelope not read yet.
+     */
+    private static class Raw {
+        final MessageClass messageClass;
+        final AMQP.BasicProperties props;
+        final byte[] body;
+
+        Raw(MessageClass messageClass, AMQP.BasicProperties props, byte[] body) {
+            this.messageClass = messageClass;
+            this.props = props;
+            this.body = body;
+        }
+    }
+
+    /**
+     * Sent message kept for resync.
+     */
+    public static class Outgoing {
+        final Envelope envelope;
+        final byte[] body;
+
+        Outgoing(Envelope envelope, byte[] body) {
+            this.envelope = envelope;
+            this.body = body;
+        }
+
+        /**
+         * Gets envelope.
+         * @return Envelope
+         */
+        public Envelope getEnvelope() {
+            return envelope;
+        }
+
+        /**
+         * Gets body.
+         * @return Encoded message
+         */
+        public byte[] getBody() {
+            return body;
+        }
+    }
+
+    /**
+     * Constructor.
+     * @param name Room name
+     * @param queueName Room queue
+     */
+    public RoomState(String name, String queueName) {
+        this.name = name;
+        this.queueName = queueName;
+    }
+
+    /**
+     * Takes a delivery. Open room adds it to history, background room only buffers it.
+     * @param messageClass Message class
+     * @param props Delivery properties
+     * @param body Message body
+     * @param clock Clock to merge timestamps into
+     * @param onGap Called with sender id when a gap shows up
+     * @return Position in history, -1 if buffered or duplicate
+     */
+    public synchronized int offer(MessageClass messageClass, AMQP.BasicProperties props, byte[] body,
+                                  HybridClock clock, Consumer<String> onGap) {
+        if (open) {
+            return acceptBounded(messageClass, props, body, clock, onGap);
+        }
+
+        tail.addLast(new Raw(messageClass, props, body));
+        if (tail.size() > TAIL_SIZE) {
+            // Resync fills it in if the room gets opened, remember where it starts
+            Envelope dropped = Envelope.read(tail.removeFirst().props);
+            if (dropped != null && dropped.getSeq() > 0) {
+                droppedFrom.merge(dropped.getSender(), dropped.getSeq(), Math::min);
+            }
+        }
+        if (messageClass == MessageClass.CHAT) {
+            unread++;
+        }
+        return -1;
+    }
+
+    /**
+     * Takes a resync reply. Only an open room adds it, a background room
+     * drops it: it is not unread and would push live messages out of the
+     * tail. The gap stays in the stream and is requested again on open.
+     * @param messageClass Message class
+     * @param props Delivery properties
+     * @param body Message body
+     * @param clock Clock to merge timestamps into
+     * @param onGap Called with sender id when a gap shows up
+     * @return Position in history, -1 if dropped or duplicate
+     */
+    public synchronized int offerResync(MessageClass messageClass, AMQP.BasicProperties props, byte[] body,
+                                        HybridClock clock, Consumer<String> onGap) {
+        return open ? acceptBounded(messageClass, props, body, clock, onGap) : -1;
+    }
+
+    /**
+     * Accepts a message into open history, trims history above its limit.
+     * @return Position in history, -1 if duplicate or trimmed
+     */
+    private int acceptBounded(MessageClass messageClass, AMQP.BasicProperties props, byte[] body,
+                              HybridClock clock, Consumer<String> onGap) {
+        int position = accept(messageClass, props, body, clock, onGap);
+        if (position < 0 || history.size() <= historyLimit + HISTORY_SLACK) return position;
+        int removed = history.size() - historyLimit;
+        trim(historyLimit);
+        return position >= removed ? position - removed : -1; // Late and older than what is kept
+    }
+
+    /**
+     * Opens the room: merges buffered tail into history and clears unread.
+     * Gaps are reported once per sender after the whole tail is merged,
+     * including ones left from before (their replies were dropped in background).
+     * @param clock Clock to merge timestamps into
+     * @param onGap Called with sender id when a gap shows up
+     */
+    public synchronized void open(HybridClock clock, Consumer<String> onGap) {
+        open = true;
+        unread = 0;
+        // A sender first seen in the dropped part would start its stream
+        // at the kept tail, with no gap to resync
+        for (Map.Entry<String, Long> dropped : droppedFrom.entrySet()) {
+            stream.expectFrom(dropped.getKey(), dropped.getValue());
+        }
+        droppedFrom.clear();
+        for (Raw raw : tail) {
+            accept(raw.messageClass, raw.props, raw.body, clock, sender -> {});
+        }
+        tail.clear();
+        for (String sender : stream.sendersWithGaps()) {
+            onGap.accept(sender);
+        }
+    }
+
+    /**
+     * Moves the room to background, keeps only the last TAIL_SIZE messages.
+     * Oldest archive id follows what is kept, so /history continues right
+     * before the kept tail instead of before the dropped messages.
+     */
+    public synchronized void close() {
+        open = false;
+        historyLimit = MAX_HISTORY;
+        trim(TAIL_SIZE);
+    }
+
+    /**
+     * Drops the oldest messages above a size, moves oldest archive id to what is kept.
+     * @param size Messages to keep
+     */
+    private void trim(int size) {
+        if (history.size() <= size) return;
+        history.subList(0, history.size() - size).clear();
+        oldestArchiveId = 0; // 0 = ask for the latest page again, overlap is deduped
+        for (ChatMessage message : history) {
+            if (message.getArchiveId() > 0 && (oldestArchiveId == 0 || message.getArchiveId() < oldestArchiveId)) {
+                oldestArchiveId = message.getArchiveId();
+            }
+        }
+    }
+
+    /**
+     * Adds a page from the archive node.
+     * Latest page before consuming goes through the stream like live
+     * messages. Older pages (/history) may overlap what is loaded, since
+     * the stream already passed their sequences they are deduped against
+     * history and inserted by HLC.
+     * @param page Messages, oldest first
+     * @param older true for /history pages
+     * @param clock Clock to merge timestamps into
+     * @param onGap Called with sender id when a gap shows up
+     * @return Number of messages added
+     */
+    public synchronized int addArchived(List<ArchivedMessage> page, boolean older, HybridClock clock, Consumer<String> onGap) {
+        Set<String> loaded = new HashSet<>();
+        if (older) {
+            for (ChatMessage message : history) {
+                String key = message.getKey();
+                if (key != null) loaded.add(key);
+            }
+        }
+
+        int added = 0;
+        for (ArchivedMessage archived : page) {
+            ChatMessage message = new ChatMessage(archived.getMessageClass(), archived.getEnvelope(),
+                    archived.getBody(), archived.getId());
+            if (older) {
+                if (loaded.add(message.getKey())) {
+                    clock.update(message.getHlc());
+                    insertOlder(message);
+                    added++;
+                }
+            } else if (accept(message, clock, onGap) >= 0) {
+                added++;
+            }
+            if (oldestArchiveId == 0 || archived.getId() < oldestArchiveId) {
+                oldestArchiveId = archived.getId();
+            }
+        }
+        if (older) historyLimit = Math.max(historyLimit, history.size()); // Keep what the user paged back to
+        return added;
+    }
+
+    /**
+     * Inserts an archived message by HLC, searching from the front.
+     */
+    private void insertOlder(ChatMessage chatMessage) {
+        int position = 0;
+        while (position < history.size() && history.get(position).getHlc() <= chatMessage.getHlc()) {
+            position++;
+        }
+        history.add(position, chatMessage);
+    }
+
+    /**
+     * Dedups a message and inserts it into history by HLC.
+     * @return Position in history, -1 if duplicate
+     */
+    private int accept(MessageClass messageClass, AMQP.BasicProperties props, byte[] body,
+                       HybridClock clock, Consumer<String> onGap) {
+        return accept(new ChatMessage(messageClass, Envelope.read(props), body), clock, onGap);
+    }
+
+    private int accept(ChatMessage chatMessage, HybridClock clock, Consumer<String> onGap) {
+        Envelope envelope = chatMessage.getEnvelope();
+        byte[] body = chatMessage.getBody();
+        RoomStream.Status status = RoomStream.Status.NEW;
+
+        if (envelope == null) {
+            // Older client without envelope, fall back to body compare
+            for (ChatMessage existing : history) {
+                if (existing.hasBody(body)) return -1;
+            }
+        } else if (envelope.getSeq() > 0) {
+            status = stream.accept(envelope.getSender(), envelope.getSeq());
+            if (status == RoomStream.Status.DUPLICATE) return -1;
+        } else if (!seenIds.add(envelope.getSender() + "/" + envelope.getHlc())) {
+            return -1;
+        }
+
+        if (envelope != null) clock.update(envelope.getHlc());
+
+        int position = insert(chatMessage);
+
+        if (status == RoomStream.Status.GAP) {
+            onGap.accept(envelope.getSender());
+        }
+        return position;
+    }
+
+    /**
+     * Inserts message into history by HLC.
+     * Notices arrive ahead of a chat backlog (higher priority), so they stay
+     * where they arrived and chat is not moved before them. Otherwise every
+     * replayed message would land before the notice and redraw history.
+     * @return Position in history
+     */
+    private int insert(ChatMessage chatMessage) {
+        int position = history.size();
+        if (chatMessage.getHlc() > 0 && chatMessage.getMessageClass() != MessageClass.PRESENCE) {
+            while (position > 0 && history.get(position - 1).getMessageClass() != MessageClass.PRESENCE
+                    && history.get(position - 1).getHlc() > chatMessage.getHlc()) {
+                position--;
+            }
+        }
+        history.add(position, chatMessage);
+        return position;
+    }
+
+    /**
+     * Creates envelope for the next chat message and keeps it in outbox.
+     * @param sessionId Sender session id
+     * @param clock Clock for timestamp
+     * @param body Encoded message
+     * @return Envelope to publish with
+     */
+    public synchronized Envelope nextOutgoing(String sessionId, HybridClock clock, byte[] body) {
+        Envelope envelope = new Envelope(sessionId, nextSeq++, clock.tick(), name);
+        outbox.addLast(new Outgoing(envelope, body));
+        if (outbox.size() > OUTBOX_SIZE) outbox.removeFirst();
+        return envelope;
+    }
+
+    /**
+     * Gets sent messages in a sequence range.
+     * @param from First sequence, inclusive
+     * @param to Last sequence, inclusive
+     * @return Messages from outbox
+     */
+    public synchronized List<Outgoing> outgoingRange(long from, long to) {
+        List<Outgoing> result = new ArrayList<>();
+        for (Outgoing outgoing : outbox) {
+            long seq = outgoing.envelope.getSeq();
+            if (seq >= from && seq <= to) result.add(outgoing);
+        }
+        return result;
+    }
+
+    /**
+     * Gets history text.
+     * @return Messages in order
+     */
+    public synchronized List<String> getHistory() {
+        return getHistory(List.of());
+    }
+
+    /**
+     * Gets history text with other messages (private) merged in by HLC.
+     * @param others Messages in HLC order
+     * @return Messages in order
+     */
+    public synchronized List<String> getHistory(List<ChatMessage> others) {
+        List<String> result = new ArrayList<>(history.size() + others.size());
+        int next = 0;
+        for (ChatMessage message : history) {
+            while (next < others.size() && others.get(next).getHlc() < message.getHlc()) {
+                result.add(others.get(next++).getText());
+            }
+            result.add(message.getText());
+        }
+        while (next < others.size()) {
+            result.add(others.get(next++).getText());
+        }
+        return result;
+    }
+
+    /**
+     * Gets body of one history entry, without decoding.
+     * @param position Position in history
+     * @return UTF-8 message text
+     */
+    public synchronized byte[] getBody(int position) {
+        return history.get(position).getBody();
+    }
+
+    /**
+     * Gets HLC timestamp of one history entry.
+     * @param position Position in history
+     * @return Timestamp, 0 if unknown
+     */
+    public synchronized long getHlc(int position) {
+        return history.get(position).getHlc();
+    }
+
+    /**
+     * Checks if position is the last one in history.
+     * @param position Position in history
+     * @return true if last
+     */
+    public synchronized boolean isLast(int position) {
+        return position == history.size() - 1;
+    }
+
+    /**
+     * Gets oldest archive id loaded.
+     * @return Archive id, 0 if nothing loaded from archive
+     */
+    public synchronized long getOldestArchiveId() {
+        return oldestArchiveId;
+    }
+
+    /**
+     * Gets room name.
+     * @return Room name
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Gets room queue.
+     * @return Queue name
+     */
+    public String getQueueName() {
+        return queueName;
+    }
+
+    /**
+     * Gets consumer tag.
+     * @return Consumer tag
+     */
+    public String getConsumerTag() {
+        return consumerTag;
+    }
+
+    /**
+     * Sets consumer tag.
+     * @param consumerTag Consumer tag
+     */
+    public void setConsumerTag(String consumerTag) {
+        this.consumerTag = consumerTag;
+    }
+
+    /**
+     * Gets stream tracker.
+     * @return Room stream
+     */
+    public RoomStream getStream() {
+        return stream;
+    }
+
+    /**
+     * Gets unread count.
+     * @return Chat messages received in background
+     */
+    public synchronized int getUnread() {
+        return unread;
+    }
+
+    /**
+     * Checks if room is open.
+     * @return true if shown in UI
+     */
+    public synchronized boolean isOpen() {
+        return open;
+    }
+}
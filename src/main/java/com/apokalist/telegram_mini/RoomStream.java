@@ -0,0 +1,178 @@
+/**
+ * @author Kostiantyn Feniuk
+ */
+
+package com.apokalist.telegram_mini;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.function.LongSupplier;
+
+/**
+ * Tracks per-sender sequences of one room.
+ *
+ * Detects duplicates and gaps, so only missing ranges need to be fetched.
+ * A gap is given up after GAP_TIMEOUT_MS (resync requests have expired by
+ * then) or when more than MAX_AHEAD sequences wait above it: the watermark
+ * moves past it, and a message from it arriving later counts as duplicate.
+ * At most MAX_SENDERS senders are tracked, the least recently seen is
+ * forgotten and starts a new stream if it shows up again.
+ */
+public class RoomStream {
+    public static final long GAP_TIMEOUT_MS = 30_000; // Same as RESYNC expiration
+    public static final int MAX_AHEAD = 1024; // Seqs kept above a gap per sender
+    public static final int MAX_SENDERS = 4096; // Senders are per session (nick@millis)
+
+    /**
+     * Result of accepting a sequence number.
+     */
+    public enum Status {
+        NEW, // Next expected or fills a gap
+        DUPLICATE, // Already seen
+        GAP // New, but some earlier sequences are missing
+    }
+
+    private final Map<String, SenderState> senders = new LinkedHashMap<>(16, 0.75f, true) { // Sender id -> state
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, SenderState> eldest) {
+            return size() > MAX_SENDERS;
+        }
+    };
+    private final LongSupplier now; // Wall clock in ms, for gap timeouts
+
+    /**
+     * Per-sender state.
+     */
+    private static class SenderState {
+        long contiguous; // All seqs <= contiguous were seen
+        long max; // Highest seq seen
+        final TreeSet<Long> ahead = new TreeSet<>(); // Seen seqs above contiguous
+        long gapSince; // When the oldest open gap showed up
+    }
+
+    /**
+     * Constructor.
+     */
+    public RoomStream() {
+        this(System::currentTimeMillis);
+    }
+
+    /**
+     * Constructor with a clock, for tests.
+     * @param now Wall clock in ms
+     */
+    public RoomStream(LongSupplier now) {
+        this.now = now;
+    }
+
+    /**
+     * Accepts a sequence number from a sender.
+     * First message of a sender starts its stream (no history before join).
+     * @param sender Sender session id
+     * @param seq Sequence number
+     * @return Status
+     */
+    public synchronized Status accept(String sender, long seq) {
+        SenderState state = senders.get(sender);
+        if (state == null) {
+            state = new SenderState();
+            state.contiguous = seq;
+            state.max = seq;
+            senders.put(sender, state);
+            return Status.NEW;
+        }
+
+        if (seq <= state.contiguous || state.ahead.contains(seq)) {
+            return Status.DUPLICATE;
+        }
+
+        Status status = seq > state.max + 1 ? Status.GAP : Status.NEW;
+        state.max = Math.max(state.max, seq);
+
+        if (seq == state.contiguous + 1) {
+            state.contiguous = seq;
+            advance(state);
+        } else {
+            if (state.ahead.isEmpty()) state.gapSince = now.getAsLong();
+            state.ahead.add(seq);
+        }
+        giveUp(state);
+        return status;
+    }
+
+    /**
+     * Moves watermark over anything that arrived early.
+     */
+    private static void advance(SenderState state) {
+        while (!state.ahead.isEmpty() && state.ahead.first() == state.contiguous + 1) {
+            state.contiguous = state.ahead.pollFirst();
+        }
+    }
+
+    /**
+     * Skips gaps that timed out or hold back too much, oldest first.
+     */
+    private void giveUp(SenderState state) {
+        long time = now.getAsLong();
+        while (!state.ahead.isEmpty()
+                && (state.ahead.size() > MAX_AHEAD || time - state.gapSince >= GAP_TIMEOUT_MS)) {
+            state.contiguous = state.ahead.pollFirst();
+            advance(state);
+            state.gapSince = time; // Next gap gets its own time from now
+        }
+    }
+
+    /**
+     * Makes a sender's stream start at a sequence seen but not kept, so the
+     * next accepted one above it reports a gap. No-op for a known sender,
+     * its stream already covers the sequence.
+     * @param sender Sender session id
+     * @param seq First sequence expected
+     */
+    public synchronized void expectFrom(String sender, long seq) {
+        if (senders.containsKey(sender)) return;
+        SenderState state = new SenderState();
+        state.contiguous = seq - 1;
+        state.max = seq - 1;
+        senders.put(sender, state);
+    }
+
+    /**
+     * Gets missing ranges for a sender, without given up ones.
+     * @param sender Sender session id
+     * @return List of {from, to} ranges, inclusive
+     */
+    public synchronized List<long[]> missing(String sender) {
+        List<long[]> ranges = new ArrayList<>();
+        SenderState state = senders.get(sender);
+        if (state == null) return ranges;
+        giveUp(state);
+
+        long expected = state.contiguous + 1;
+        for (long seq : state.ahead) {
+            if (seq > expected) {
+                ranges.add(new long[]{expected, seq - 1});
+            }
+            expected = seq + 1;
+        }
+        return ranges;
+    }
+
+    /**
+     * Gets senders with at least one missing range that is not given up.
+     * @return List of sender ids
+     */
+    public synchronized List<String> sendersWithGaps() {
+        List<String> result = new ArrayList<>();
+        for (Map.Entry<String, SenderState> entry : senders.entrySet()) {
+            giveUp(entry.getValue());
+            if (!entry.getValue().ahead.isEmpty()) {
+                result.add(entry.getKey());
+            }
+        }
+        return result;
+    }
+}
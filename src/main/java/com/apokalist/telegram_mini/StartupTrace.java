@@ -0,0 +1,54 @@
+/**
+ * @author Kostiantyn Feniuk
+ */
+
+package com.apokalist.telegram_mini;
+
+import javafx.scene.Scene;
+
+/**
+ * Logs startup timings relative to login.
+ *
+ * time-to-first-paint: first layout pulse of the chat window
+ * time-to-interactive: connections are up and history is loaded
+ */
+public class StartupTrace {
+    private final long start = System.nanoTime(); // Trace start (login confirmed)
+    private long firstPaintMs = -1; // Time to first paint, -1 until known
+
+    /**
+     * Logs a startup event.
+     * @param event Event name
+     * @return Milliseconds since start
+     */
+    public synchronized long mark(String event) {
+        long ms = (System.nanoTime() - start) / 1_000_000;
+        System.out.println("[startup] " + event + " +" + ms + " ms (" + Thread.currentThread().getName() + ")");
+        return ms;
+    }
+
+    /**
+     * Marks first paint on the first layout pulse of the scene.
+     * @param scene Chat window scene
+     */
+    public void traceFirstPaint(Scene scene) {
+        Runnable listener = new Runnable() {
+            @Override
+            public void run() {
+                scene.removePostLayoutPulseListener(this); // Once only
+                synchronized (StartupTrace.this) {
+                    firstPaintMs = mark("first paint");
+                }
+            }
+        };
+        scene.addPostLayoutPulseListener(listener);
+    }
+
+    /**
+     * Marks the app as interactive and logs the summary.
+     */
+    public synchronized void markInteractive() {
+        long interactiveMs = mark("interactive");
+        System.out.println("[startup] time-to-first-paint: " + firstPaintMs + " ms, time-to-interactive: " + interactiveMs + " ms");
+    }
+}
@@ -0,0 +1,116 @@
+/**
+ * @author Kostiantyn Feniuk
+ */
+
+package com.apokalist.telegram_mini;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.LongString;
+import com.rabbitmq.client.impl.LongStringHelper;
+
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Flow;
+
+/**
+ * Allocation per message on the client's receive and send paths, no broker.
+ * Not a unit test (no *Test suffix), run by hand, see README "Delivery Path".
+ *
+ * receive - RoomState.offer, MessagePublisher hand-off, ack and decode for render
+ * send - format, envelope and properties of one chat message
+ * Measured with ThreadMXBean.getCurrentThreadAllocatedBytes on the calling
+ * thread, after warm-up rounds so the JIT has compiled the paths.
+ */
+public class AllocationBenchmark {
+    private static final int MESSAGES = 200_000;
+    private static final int WARMUP_ROUNDS = 3;
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private static long sink; // Keeps results alive
+
+    public static void main(String[] args) {
+        for (int i = 0; i < WARMUP_ROUNDS; i++) {
+            receive();
+            send();
+        }
+        System.out.printf("java %s%n", System.getProperty("java.version"));
+        System.out.printf("receive: %.0f bytes/message%n", receive());
+        System.out.printf("send:    %.0f bytes/message%n", send());
+    }
+
+    /**
+     * Room deliveries as the broker hands them over, headers already decoded
+     * by amqp-client (not counted).
+     */
+    private static AMQP.BasicProperties[] deliveries(String room) {
+        AMQP.BasicProperties[] props = new AMQP.BasicProperties[MESSAGES];
+        LongString sender = LongStringHelper.asLongString("alice@1700000000000");
+        LongString roomName = LongStringHelper.asLongString(room);
+        for (int i = 0; i < MESSAGES; i++) {
+            Map<String, Object> headers = new HashMap<>();
+            headers.put(Envelope.SENDER, sender);
+            headers.put(Envelope.SEQ, (long) i + 1);
+            headers.put(Envelope.HLC, (1_700_000_000_000L + i) << 16);
+            headers.put(Envelope.ROOM, roomName);
+            props[i] = MessageClass.CHAT.properties(headers);
+        }
+        return props;
+    }
+
+    private static double receive() {
+        AMQP.BasicProperties[] props = deliveries("general");
+        byte[][] bodies = new byte[MESSAGES][];
+        for (int i = 0; i < MESSAGES; i++) {
+            bodies[i] = ("[12:00:00] alice: hello number " + i).getBytes(StandardCharsets.UTF_8);
+        }
+
+        RoomState room = new RoomState("general", "queue");
+        HybridClock clock = new HybridClock();
+        room.open(clock, sender -> {});
+        MessagePublisher publisher = new MessagePublisher(prefetch -> {});
+        publisher.subscribe(new Flow.Subscriber<>() {
+            @Override
+            public void onSubscribe(Flow.Subscription subscription) {
+                subscription.request(Long.MAX_VALUE);
+            }
+
+            @Override
+            public void onNext(ChatEvent event) {
+                sink += MessageCodec.decode(event.getBody()).length(); // What the render pass decodes
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+            }
+
+            @Override
+            public void onComplete() {
+            }
+        });
+
+        long start = THREADS.getCurrentThreadAllocatedBytes();
+        for (int i = 0; i < MESSAGES; i++) {
+            int position = room.offer(MessageClass.of(props[i]), props[i], bodies[i], clock, sender -> {});
+            if (room.isLast(position)) {
+                publisher.publish(ChatEvent.message(room.getName(), room.getBody(position), 0), i, tag -> sink += tag);
+            }
+        }
+        return (double) (THREADS.getCurrentThreadAllocatedBytes() - start) / MESSAGES;
+    }
+
+    private static double send() {
+        RoomState room = new RoomState("general", "queue");
+        HybridClock clock = new HybridClock();
+        long start = THREADS.getCurrentThreadAllocatedBytes();
+        for (int i = 0; i < MESSAGES; i++) {
+            byte[] body = MessageCodec.chat("alice", "hello world");
+            Envelope envelope = room.nextOutgoing("alice@1700000000000", clock, body);
+            AMQP.BasicProperties props = envelope.toProperties(MessageClass.CHAT);
+            sink += props.hashCode() + body.length;
+        }
+        return (double) (THREADS.getCurrentThreadAllocatedBytes() - start) / MESSAGES;
+    }
+}
@@ -0,0 +1,140 @@
+/**
+ * @author Kostiantyn Feniuk
+ */
+
+package com.apokalist.telegram_mini;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ArchiveStoreTest {
+    private final File directory = Files.createTempDirectory("archive").toFile();
+    private ArchiveStore store = new ArchiveStore(directory);
+
+    ArchiveStoreTest() throws IOException {
+    }
+
+    @AfterEach
+    void delete() throws IOException {
+        store.close();
+        try (Stream<Path> paths = Files.walk(directory.toPath())) {
+            paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    private long append(String room, int n) throws IOException {
+        Envelope envelope = new Envelope("alice@1", n, (long) n << 16, room);
+        return store.append(MessageClass.CHAT, envelope, ("message " + n).getBytes(StandardCharsets.UTF_8));
+    }
+
+    private void appendAll(String room, int count) throws IOException {
+        for (int n = 1; n <= count; n++) {
+            assertEquals(n, append(room, n));
+        }
+    }
+
+    private static List<Long> ids(List<ArchivedMessage> page) {
+        List<Long> ids = new ArrayList<>();
+        for (ArchivedMessage message : page) ids.add(message.getId());
+        return ids;
+    }
+
+    @Test
+    void unknownRoomIsEmptyAndCreatesNoFiles() throws IOException {
+        assertTrue(store.before("nobody", Long.MAX_VALUE, 50).isEmpty());
+        assertTrue(store.after("nobody", 0, 50).isEmpty());
+        assertTrue(store.before("../etc", Long.MAX_VALUE, 50).isEmpty());
+
+        assertEquals(0, directory.listFiles().length);
+    }
+
+    @Test
+    void beforePagesBackwards() throws IOException {
+        appendAll("general", 10);
+
+        assertEquals(List.of(8L, 9L, 10L), ids(store.before("general", Long.MAX_VALUE, 3)));
+        assertEquals(List.of(5L, 6L, 7L), ids(store.before("general", 8, 3)));
+        assertEquals(List.of(1L), ids(store.before("general", 2, 5))); // Stops at the first id
+        assertTrue(store.before("general", 1, 5).isEmpty());
+        assertEquals(List.of(10L), ids(store.before("general", Long.MAX_VALUE, 0))); // At least one
+    }
+
+    @Test
+    void afterPagesForwards() throws IOException {
+        appendAll("general", 10);
+
+        assertEquals(List.of(1L, 2L, 3L), ids(store.after("general", 0, 3)));
+        assertEquals(List.of(10L), ids(store.after("general", 9, 5))); // Stops at the last id
+        assertTrue(store.after("general", 10, 5).isEmpty());
+    }
+
+    @Test
+    void pageSizeIsCapped() throws IOException {
+        appendAll("general", ArchiveStore.MAX_PAGE + 5);
+
+        assertEquals(ArchiveStore.MAX_PAGE, store.before("general", Long.MAX_VALUE, 10_000).size());
+        assertEquals(ArchiveStore.MAX_PAGE, store.after("general", 0, 10_000).size());
+    }
+
+    @Test
+    void roomsHaveTheirOwnIds() throws IOException {
+        appendAll("general", 3);
+        assertEquals(1, append("random", 1));
+
+        assertEquals(List.of(1L), ids(store.before("random", Long.MAX_VALUE, 50)));
+        assertEquals(3, store.before("general", Long.MAX_VALUE, 50).size());
+    }
+
+    @Test
+    void reopenContinuesFromIndex() throws IOException {
+        appendAll("general", 3);
+        store.close();
+
+        store = new ArchiveStore(directory);
+        assertEquals(4, append("general", 4));
+
+        List<ArchivedMessage> page = store.before("general", Long.MAX_VALUE, 50);
+        assertEquals(List.of(1L, 2L, 3L, 4L), ids(page));
+        assertArrayEquals("message 4".getBytes(StandardCharsets.UTF_8), page.get(3).getBody());
+    }
+
+    @Test
+    void orphanedRecordIsSkipped() throws IOException {
+        appendAll("general", 2);
+        store.close();
+
+        // Crash between log and index write: record in the log, no index entry
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        new ArchivedMessage(3, MessageClass.CHAT, new Envelope("alice@1", 3, 3L << 16, "general"),
+                "orphan".getBytes(StandardCharsets.UTF_8)).write(new DataOutputStream(bytes));
+        try (RandomAccessFile log = new RandomAccessFile(new File(directory, "general.log"), "rw")) {
+            log.seek(log.length());
+            log.write(bytes.toByteArray());
+        }
+
+        store = new ArchiveStore(directory);
+        assertEquals(3, append("general", 3)); // Redelivered after the crash
+
+        List<ArchivedMessage> page = store.before("general", Long.MAX_VALUE, 50);
+        assertEquals(List.of(1L, 2L, 3L), ids(page));
+        assertArrayEquals("message 3".getBytes(StandardCharsets.UTF_8), page.get(2).getBody());
+        assertEquals(List.of(3L), ids(store.after("general", 2, 50)));
+    }
+}
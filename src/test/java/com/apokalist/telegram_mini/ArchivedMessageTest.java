@@ -0,0 +1,60 @@
+/**
+ * @author Kostiantyn Feniuk
+ */
+
+package com.apokalist.telegram_mini;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ArchivedMessageTest {
+    private static ArchivedMessage message(long id, String text) {
+        return new ArchivedMessage(id, MessageClass.CHAT, new Envelope("alice@1700000000000", id, (1_700_000_000_000L << 16) | id, "général"),
+                text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void assertSame(ArchivedMessage expected, ArchivedMessage actual) {
+        assertEquals(expected.getId(), actual.getId());
+        assertEquals(expected.getMessageClass(), actual.getMessageClass());
+        assertEquals(expected.getEnvelope().getSender(), actual.getEnvelope().getSender());
+        assertEquals(expected.getEnvelope().getSeq(), actual.getEnvelope().getSeq());
+        assertEquals(expected.getEnvelope().getHlc(), actual.getEnvelope().getHlc());
+        assertEquals(expected.getEnvelope().getRoom(), actual.getEnvelope().getRoom());
+        assertArrayEquals(expected.getBody(), actual.getBody());
+    }
+
+    @Test
+    void pageRoundTrip() throws IOException {
+        List<ArchivedMessage> page = List.of(message(1, "[12:00:00] alice: hi"), message(2, "[12:00:01] alice: привіт"),
+                message(3, ""));
+
+        List<ArchivedMessage> read = ArchivedMessage.readPage(ArchivedMessage.writePage(page));
+
+        assertEquals(page.size(), read.size());
+        for (int i = 0; i < page.size(); i++) {
+            assertSame(page.get(i), read.get(i));
+        }
+    }
+
+    @Test
+    void emptyPageRoundTrip() throws IOException {
+        assertTrue(ArchivedMessage.readPage(ArchivedMessage.writePage(List.of())).isEmpty());
+    }
+
+    @Test
+    void truncatedPageFails() throws IOException {
+        byte[] body = ArchivedMessage.writePage(List.of(message(1, "hi")));
+        byte[] truncated = Arrays.copyOf(body, body.length - 1);
+
+        assertThrows(IOException.class, () -> ArchivedMessage.readPage(truncated));
+    }
+}
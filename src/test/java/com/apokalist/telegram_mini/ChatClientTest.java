@@ -0,0 +1,168 @@
+/**
+ * @author Kostiantyn Feniuk
+ */
+
+package com.apokalist.telegram_mini;
+
+import com.rabbitmq.client.AMQP;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Flow;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ChatClientTest {
+    private static final String BOB = "bob@1700000000000";
+    private final FakeBroker broker = new FakeBroker();
+    private final ChatClient client = new ChatClient("alice", "general", broker);
+
+    @AfterEach
+    void close() {
+        client.close();
+    }
+
+    /**
+     * Subscriber that requests once on subscribe.
+     */
+    private static Flow.Subscriber<ChatEvent> requesting(long n) {
+        return new Flow.Subscriber<>() {
+            @Override
+            public void onSubscribe(Flow.Subscription subscription) {
+                subscription.request(n);
+            }
+
+            @Override
+            public void onNext(ChatEvent event) {
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+            }
+
+            @Override
+            public void onComplete() {
+            }
+        };
+    }
+
+    private List<FakeBroker.Published> published(MessageClass messageClass, String routingKey) {
+        return broker.getPublished().stream()
+                .filter(p -> MessageClass.of(p.props) == messageClass && p.routingKey.equals(routingKey))
+                .toList();
+    }
+
+    @Test
+    void demandBeforeConnectSetsChannelPrefetch() {
+        client.messages().subscribe(requesting(Long.MAX_VALUE));
+
+        assertTrue(client.connect());
+
+        List<Integer> qos = broker.getGlobalQos();
+        assertEquals(1000, qos.get(0)); // Unbounded demand, max prefetch before consuming
+        assertEquals(1000, qos.get(qos.size() - 1));
+    }
+
+    @Test
+    void smallDemandBeforeConnectSetsChannelPrefetch() {
+        client.messages().subscribe(requesting(20));
+
+        assertTrue(client.connect());
+
+        List<Integer> qos = broker.getGlobalQos();
+        assertEquals(20, qos.get(0)); // Before consuming
+        assertEquals(20, qos.get(qos.size() - 1)); // Update queued before connect may apply it again
+    }
+
+    @Test
+    void withoutDemandChannelStartsAtInitialPrefetch() {
+        assertTrue(client.connect());
+
+        assertEquals(List.of(MessagePublisher.INITIAL_PREFETCH), broker.getGlobalQos());
+    }
+
+    @Test
+    void prefetchChangesShareOneQosUpdate() throws InterruptedException {
+        Flow.Subscription[] subscription = new Flow.Subscription[1];
+        client.messages().subscribe(new Flow.Subscriber<>() {
+            @Override
+            public void onSubscribe(Flow.Subscription s) {
+                subscription[0] = s;
+                s.request(20);
+            }
+
+            @Override
+            public void onNext(ChatEvent event) {
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+            }
+
+            @Override
+            public void onComplete() {
+            }
+        });
+        assertTrue(client.connect());
+        List<Integer> connected = broker.getGlobalQos();
+
+        subscription[0].request(100); // Each one changes the prefetch
+        subscription[0].request(1000);
+
+        long deadline = System.currentTimeMillis() + 3000;
+        while (broker.getGlobalQos().size() == connected.size() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        Thread.sleep(100);
+        List<Integer> qos = broker.getGlobalQos();
+        assertEquals(connected.size() + 1, qos.size()); // One round trip for both changes
+        assertEquals(1000, qos.get(qos.size() - 1));
+    }
+
+    @Test
+    void gapRequestGoesToSenderPrivateQueue() throws IOException {
+        assertTrue(client.connect());
+
+        for (long seq : new long[]{1, 3}) {
+            broker.deliver("chat_exchange_v2", "general",
+                    new Envelope(BOB, seq, seq << 16, "general").toProperties(MessageClass.CHAT), MessageCodec.chat("bob", "m" + seq));
+        }
+
+        assertTrue(published(MessageClass.RESYNC, "general").isEmpty()); // Other members never see it
+        List<FakeBroker.Published> requests = published(MessageClass.RESYNC, "private_bob");
+        assertEquals(1, requests.size());
+        FakeBroker.Published request = requests.get(0);
+        assertEquals("", request.exchange);
+        assertEquals("private_alice", request.props.getReplyTo());
+        Map<String, Object> headers = request.props.getHeaders();
+        assertEquals(BOB, headers.get("target"));
+        assertEquals(2L, headers.get("from"));
+        assertEquals(2L, headers.get("to"));
+        assertEquals("general", headers.get(Envelope.ROOM));
+    }
+
+    @Test
+    void resyncRequestOnPrivateQueueIsAnswered() throws IOException {
+        assertTrue(client.connect());
+        client.sendMessage("hi");
+        FakeBroker.Published sent = published(MessageClass.CHAT, "general").get(0);
+        String sessionId = Envelope.read(sent.props).getSender();
+
+        AMQP.BasicProperties request = MessageClass.RESYNC.properties().builder()
+                .headers(Map.of("target", sessionId, "from", 1L, "to", 1L, Envelope.ROOM, "general"))
+                .replyTo("private_bob")
+                .build();
+        broker.deliver("", "private_alice", request, new byte[0]);
+
+        List<FakeBroker.Published> replies = published(MessageClass.CHAT, "private_bob");
+        assertEquals(1, replies.size());
+        FakeBroker.Published reply = replies.get(0);
+        assertEquals(1, Envelope.read(reply.props).getSeq());
+        assertArrayEquals(sent.body, reply.body);
+    }
+}
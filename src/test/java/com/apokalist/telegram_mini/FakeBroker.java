@@ -0,0 +1,184 @@
+/**
+ * @author Kostiantyn Feniuk
+ */
+
+package com.apokalist.telegram_mini;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.ConnectionFactory;
+import com.rabbitmq.client.DeliverCallback;
+import com.rabbitmq.client.Delivery;
+import com.rabbitmq.client.Return;
+import com.rabbitmq.client.ReturnCallback;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Connection factory for tests, no broker behind it.
+ *
+ * Connections and channels are proxies that accept every call. Channels
+ * record channel-wide qos, publishes, bindings and consumers, so tests can
+ * deliver to a queue or a room. Nothing consumes ArchiveNode.RPC_QUEUE, so mandatory history requests are returned
+ * right away, like a broker without an archive node.
+ */
+class FakeBroker extends ConnectionFactory {
+    private final AtomicInteger names = new AtomicInteger(); // Server-named queues and consumer tags
+    private final List<Integer> globalQos = new ArrayList<>(); // basicQos(n, true) calls, in order
+    private final List<Published> published = new ArrayList<>(); // All publishes, in order
+    private final Map<String, String> bindings = new HashMap<>(); // Routing key -> queue
+    private final Map<String, DeliverCallback> consumers = new HashMap<>(); // Queue -> consumer
+    private long deliveryTag; // Last delivery tag
+
+    /**
+     * Message published on a fake channel.
+     */
+    static class Published {
+        final String exchange;
+        final String routingKey;
+        final AMQP.BasicProperties props;
+        final byte[] body;
+
+        Published(String exchange, String routingKey, AMQP.BasicProperties props, byte[] body) {
+            this.exchange = exchange;
+            this.routingKey = routingKey;
+            this.props = props;
+            this.body = body;
+        }
+    }
+
+    @Override
+    public Connection newConnection() {
+        return (Connection) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[]{Connection.class},
+                (proxy, method, args) -> method.getName().equals("createChannel")
+                        ? newChannel()
+                        : stub(proxy, method, args));
+    }
+
+    /**
+     * Gets channel-wide prefetch calls.
+     * @return Prefetch values, in order
+     */
+    synchronized List<Integer> getGlobalQos() {
+        return new ArrayList<>(globalQos);
+    }
+
+    /**
+     * Gets publishes.
+     * @return Published messages, in order
+     */
+    synchronized List<Published> getPublished() {
+        return new ArrayList<>(published);
+    }
+
+    /**
+     * Delivers a message to the consumer of the queue it routes to.
+     * @param exchange Exchange, "" for a queue by name
+     * @param routingKey Routing key
+     * @param props Properties
+     * @param body Body
+     */
+    void deliver(String exchange, String routingKey, AMQP.BasicProperties props, byte[] body) throws IOException {
+        DeliverCallback consumer;
+        long tag;
+        synchronized (this) {
+            String queue = exchange.isEmpty() ? routingKey : bindings.get(routingKey);
+            consumer = consumers.get(queue);
+            tag = ++deliveryTag;
+        }
+        if (consumer == null) throw new IllegalStateException("No consumer for " + routingKey);
+        consumer.handle("amq.ctag-" + tag, new Delivery(new com.rabbitmq.client.Envelope(tag, false, exchange, routingKey), props, body));
+    }
+
+    private Channel newChannel() {
+        ReturnCallback[] returns = new ReturnCallback[1];
+        return (Channel) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[]{Channel.class},
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "basicQos" -> {
+                            if (args.length == 2 && Boolean.TRUE.equals(args[1])) {
+                                synchronized (this) {
+                                    globalQos.add((Integer) args[0]);
+                                }
+                            }
+                        }
+                        case "queueBind" -> {
+                            synchronized (this) {
+                                bindings.put((String) args[2], (String) args[0]);
+                            }
+                        }
+                        case "basicConsume" -> {
+                            for (Object arg : args) {
+                                if (arg instanceof DeliverCallback callback) {
+                                    synchronized (this) {
+                                        consumers.put((String) args[0], callback);
+                                    }
+                                }
+                            }
+                            return "amq.ctag-" + names.incrementAndGet();
+                        }
+                        case "addReturnListener" -> {
+                            if (args[0] instanceof ReturnCallback callback) returns[0] = callback;
+                        }
+                        case "basicPublish" -> {
+                            int n = args.length;
+                            String exchange = (String) args[0];
+                            String routingKey = (String) args[1];
+                            AMQP.BasicProperties props = (AMQP.BasicProperties) args[n - 2];
+                            byte[] body = (byte[]) args[n - 1];
+                            synchronized (this) {
+                                published.add(new Published(exchange, routingKey, props, body));
+                            }
+                            boolean mandatory = n >= 5 && Boolean.TRUE.equals(args[2]);
+                            if (mandatory && ArchiveNode.RPC_QUEUE.equals(routingKey) && returns[0] != null) {
+                                returns[0].handle(new Return(312, "NO_ROUTE", exchange, routingKey, props, body));
+                            }
+                        }
+                        default -> {
+                            return stub(proxy, method, args);
+                        }
+                    }
+                    return null;
+                });
+    }
+
+    /**
+     * Answers any other call: open, empty, interfaces as further stubs.
+     */
+    private Object stub(Object proxy, Method method, Object[] args) {
+        Class<?> type = method.getReturnType();
+        switch (method.getName()) {
+            case "isOpen" -> {
+                return true;
+            }
+            case "hashCode" -> {
+                return System.identityHashCode(proxy);
+            }
+            case "equals" -> {
+                return proxy == args[0];
+            }
+            case "toString" -> {
+                return "fake " + method.getDeclaringClass().getSimpleName();
+            }
+        }
+        if (type == void.class) return null;
+        if (type == boolean.class) return false;
+        if (type == long.class) return 0L;
+        if (type == int.class) return 0;
+        if (type.isPrimitive()) return null; // Not used by the client
+        if (type == String.class) return "amq.gen-" + names.incrementAndGet();
+        if (type.isInterface()) {
+            return Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[]{type},
+                    (inner, innerMethod, innerArgs) -> stub(inner, innerMethod, innerArgs));
+        }
+        return null;
+    }
+}
@@ -0,0 +1,50 @@
+/**
+ * @author Kostiantyn Feniuk
+ */
+
+package com.apokalist.telegram_mini;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class HybridClockTest {
+    private final HybridClock clock = new HybridClock();
+
+    @Test
+    void tickIsStrictlyIncreasing() {
+        long previous = clock.tick();
+        for (int i = 0; i < 100_000; i++) { // Many per millisecond, counter breaks ties
+            long next = clock.tick();
+            assertTrue(next > previous);
+            previous = next;
+        }
+    }
+
+    @Test
+    void tickFollowsWallTime() {
+        long before = System.currentTimeMillis();
+        long millis = HybridClock.physicalMillis(clock.tick());
+        assertTrue(millis >= before && millis <= System.currentTimeMillis());
+    }
+
+    @Test
+    void updateMovesPastRemoteAhead() {
+        long remote = (System.currentTimeMillis() + 60_000) << 16; // Sender clock a minute ahead
+        clock.update(remote);
+        assertTrue(clock.tick() > remote);
+    }
+
+    @Test
+    void updateWithOldRemoteKeepsWallTime() {
+        long local = clock.tick();
+        clock.update(1L << 16);
+        assertTrue(clock.tick() > local);
+    }
+
+    @Test
+    void physicalMillisDropsCounter() {
+        assertEquals(1_700_000_000_000L, HybridClock.physicalMillis((1_700_000_000_000L << 16) | 0xFFFF));
+    }
+}
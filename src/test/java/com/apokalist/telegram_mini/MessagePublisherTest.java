@@ -0,0 +1,161 @@
+/**
+ * @author Kostiantyn Feniuk
+ */
+
+package com.apokalist.telegram_mini;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Flow;
+import java.util.function.Consumer;
+import java.util.function.LongConsumer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class MessagePublisherTest {
+    private final List<Long> acked = new ArrayList<>();
+    private final LongConsumer ack = acked::add;
+    private final List<Integer> prefetches = new ArrayList<>();
+    private final MessagePublisher publisher = new MessagePublisher(prefetches::add);
+
+    /**
+     * Subscriber with callbacks for the test.
+     */
+    private static class TestSubscriber implements Flow.Subscriber<ChatEvent> {
+        final List<ChatEvent> received = new ArrayList<>();
+        final long initialRequest; // 0 = none
+        final Consumer<TestSubscriber> onEach;
+        Flow.Subscription subscription;
+        volatile int completions;
+
+        TestSubscriber(long initialRequest, Consumer<TestSubscriber> onEach) {
+            this.initialRequest = initialRequest;
+            this.onEach = onEach;
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            this.subscription = subscription;
+            if (initialRequest > 0) subscription.request(initialRequest);
+        }
+
+        @Override
+        public void onNext(ChatEvent event) {
+            received.add(event);
+            onEach.accept(this);
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+        }
+
+        @Override
+        public void onComplete() {
+            completions++; // Serial signals, no atomic needed
+        }
+    }
+
+    private void publishRoom(int count) {
+        for (int i = 0; i < count; i++) {
+            publisher.publish(ChatEvent.message("room", new byte[]{'m'}, 0), i, ack);
+        }
+    }
+
+    @Test
+    void unboundedDemandAcksEveryItem() {
+        TestSubscriber subscriber = new TestSubscriber(Long.MAX_VALUE, s -> {});
+        publisher.subscribe(subscriber);
+
+        publishRoom(200);
+
+        assertEquals(200, subscriber.received.size());
+        assertEquals(200, acked.size());
+        assertEquals(1000, prefetches.get(prefetches.size() - 1)); // Unbounded demand, max prefetch
+    }
+
+    @Test
+    void requestOnePerItemAcksAfterEachOnNext() {
+        List<Integer> ackedBeforeOnNext = new ArrayList<>();
+        TestSubscriber subscriber = new TestSubscriber(1, s -> {
+            ackedBeforeOnNext.add(acked.size());
+            s.subscription.request(1);
+        });
+        publisher.subscribe(subscriber);
+
+        publishRoom(200);
+
+        assertEquals(200, subscriber.received.size());
+        assertEquals(200, acked.size());
+        for (int i = 0; i < 200; i++) {
+            assertEquals(i, ackedBeforeOnNext.get(i)); // Acked when onNext returned, in order
+            assertEquals(i, acked.get(i));
+        }
+    }
+
+    @Test
+    void noDemandHoldsDeliveriesUnacked() {
+        TestSubscriber subscriber = new TestSubscriber(0, s -> {});
+        publisher.subscribe(subscriber);
+
+        publishRoom(5);
+        assertEquals(0, subscriber.received.size());
+        assertEquals(0, acked.size());
+
+        subscriber.subscription.request(3);
+        assertEquals(3, subscriber.received.size());
+        assertEquals(3, acked.size());
+    }
+
+    @Test
+    void withoutSubscribersDeliveryIsAcked() {
+        publishRoom(3);
+        assertEquals(List.of(0L, 1L, 2L), acked);
+    }
+
+    @Test
+    void controlAndPrivateOvertakeRoomBacklog() {
+        TestSubscriber subscriber = new TestSubscriber(0, s -> {});
+        publisher.subscribe(subscriber);
+
+        publishRoom(30);
+        publisher.publish(ChatEvent.privateMessage(new byte[]{'p'}, 0), 100, ack);
+        publisher.publish(ChatEvent.unread("room"));
+        subscriber.subscription.request(3);
+
+        assertEquals(ChatEvent.Lane.CONTROL, subscriber.received.get(0).getLane());
+        assertEquals(ChatEvent.Lane.PRIVATE, subscriber.received.get(1).getLane());
+        assertEquals(ChatEvent.Lane.ROOM, subscriber.received.get(2).getLane());
+    }
+
+    @Test
+    void completeWaitsForOnNextInProgress() throws InterruptedException {
+        CountDownLatch entered = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        TestSubscriber subscriber = new TestSubscriber(Long.MAX_VALUE, s -> {
+            entered.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        publisher.subscribe(subscriber);
+        Thread consumer = new Thread(() -> publishRoom(1));
+        consumer.start();
+        entered.await();
+
+        publisher.publish(ChatEvent.message("room", new byte[]{'m'}, 0), 1, ack); // Waits behind onNext
+        publisher.complete(); // Client closing on another thread
+        assertEquals(0, subscriber.completions); // Not while onNext runs
+
+        release.countDown();
+        consumer.join();
+
+        assertEquals(1, subscriber.completions);
+        assertEquals(1, subscriber.received.size()); // Waiting event dropped
+        assertEquals(List.of(0L), acked); // and not acked
+    }
+}
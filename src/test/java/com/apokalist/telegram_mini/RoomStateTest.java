@@ -0,0 +1,167 @@
+/**
+ * @author Kostiantyn Feniuk
+ */
+
+package com.apokalist.telegram_mini;
+
+import com.rabbitmq.client.AMQP;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class RoomStateTest {
+    private static final String BOB = "bob@1700000000000";
+
+    private final RoomState room = new RoomState("general", "amq.gen-1");
+    private final HybridClock clock = new HybridClock();
+    private final List<String> gaps = new ArrayList<>();
+
+    private static AMQP.BasicProperties props(long seq) {
+        return new Envelope(BOB, seq, (1_700_000_000_000L + seq) << 16, "general").toProperties(MessageClass.CHAT);
+    }
+
+    private static byte[] body(long seq) {
+        return ("m" + seq).getBytes(StandardCharsets.UTF_8);
+    }
+
+    private int offer(long seq) {
+        return room.offer(MessageClass.CHAT, props(seq), body(seq), clock, gaps::add);
+    }
+
+    private void offerAll(long from, long to) {
+        for (long seq = from; seq <= to; seq++) offer(seq);
+    }
+
+    private static ArchivedMessage archived(long id) {
+        return new ArchivedMessage(id, MessageClass.CHAT, Envelope.read(props(id)), body(id));
+    }
+
+    private static List<ArchivedMessage> page(long from, long to) {
+        List<ArchivedMessage> page = new ArrayList<>();
+        for (long id = from; id <= to; id++) page.add(archived(id));
+        return page;
+    }
+
+    private static List<String> texts(long from, long to) {
+        List<String> texts = new ArrayList<>();
+        for (long seq = from; seq <= to; seq++) texts.add("m" + seq);
+        return texts;
+    }
+
+    @Test
+    void openMergesTailAndClearsUnread() {
+        offerAll(1, 3);
+        assertEquals(3, room.getUnread());
+        assertTrue(room.getHistory().isEmpty()); // Background keeps raw deliveries only
+
+        room.open(clock, gaps::add);
+
+        assertEquals(0, room.getUnread());
+        assertEquals(texts(1, 3), room.getHistory());
+        assertTrue(gaps.isEmpty());
+    }
+
+    @Test
+    void tailOverflowReportsDroppedRangeOnOpen() {
+        offerAll(1, RoomState.TAIL_SIZE + 5);
+
+        room.open(clock, gaps::add);
+
+        assertEquals(texts(6, RoomState.TAIL_SIZE + 5), room.getHistory());
+        assertEquals(List.of(BOB), gaps); // Once per sender, not per message
+        List<long[]> missing = room.getStream().missing(BOB);
+        assertEquals(1, missing.size());
+        assertArrayEquals(new long[]{1, 5}, missing.get(0));
+    }
+
+    @Test
+    void resyncReplyInBackgroundIsDropped() {
+        offer(1);
+
+        assertEquals(-1, room.offerResync(MessageClass.CHAT, props(2), body(2), clock, gaps::add));
+
+        assertEquals(1, room.getUnread()); // Not counted as unread
+        room.open(clock, gaps::add);
+        assertEquals(texts(1, 1), room.getHistory());
+    }
+
+    @Test
+    void resyncReplyAfterOpenFillsGap() {
+        room.open(clock, gaps::add);
+        offer(1);
+        offer(3);
+        assertEquals(List.of(BOB), gaps);
+
+        int position = room.offerResync(MessageClass.CHAT, props(2), body(2), clock, gaps::add);
+
+        assertEquals(1, position);
+        assertFalse(room.isLast(position)); // Late, needs a redraw
+        assertEquals(texts(1, 3), room.getHistory());
+        assertTrue(room.getStream().missing(BOB).isEmpty());
+    }
+
+    @Test
+    void openReportsGapsLeftFromBefore() {
+        room.open(clock, gaps::add);
+        offer(1);
+        offer(3);
+        room.close();
+        gaps.clear();
+
+        room.open(clock, gaps::add); // Reply for 2 may have been dropped in background
+
+        assertEquals(List.of(BOB), gaps);
+    }
+
+    @Test
+    void closeKeepsTailAndMovesOldestArchiveId() {
+        room.open(clock, gaps::add);
+        assertEquals(60, room.addArchived(page(1, 60), false, clock, gaps::add));
+        assertEquals(1, room.getOldestArchiveId());
+
+        room.close();
+
+        assertEquals(texts(11, 60), room.getHistory());
+        assertEquals(11, room.getOldestArchiveId()); // /history continues before the kept tail
+    }
+
+    @Test
+    void olderPageIsDedupedAndInsertedFirst() {
+        room.open(clock, gaps::add);
+        room.addArchived(page(5, 10), false, clock, gaps::add);
+
+        assertEquals(4, room.addArchived(page(1, 7), true, clock, gaps::add)); // 5..7 already loaded
+
+        assertEquals(texts(1, 10), room.getHistory());
+        assertEquals(1, room.getOldestArchiveId());
+    }
+
+    @Test
+    void openHistoryIsBounded() {
+        room.open(clock, gaps::add);
+        int count = RoomState.MAX_HISTORY * 2;
+        offerAll(1, count);
+
+        List<String> history = room.getHistory();
+        assertTrue(history.size() >= RoomState.MAX_HISTORY && history.size() <= RoomState.MAX_HISTORY * 11 / 10);
+        assertEquals("m" + count, history.get(history.size() - 1));
+    }
+
+    @Test
+    void olderPagesRaiseTheBound() {
+        room.open(clock, gaps::add);
+        room.addArchived(page(101, 100 + RoomState.MAX_HISTORY), false, clock, gaps::add);
+        room.addArchived(page(1, 100), true, clock, gaps::add);
+
+        offerAll(101 + RoomState.MAX_HISTORY, 201 + RoomState.MAX_HISTORY); // One above the slack, trims once
+
+        assertEquals(RoomState.MAX_HISTORY + 100, room.getHistory().size()); // Paged back by the user, kept while open
+    }
+}
@@ -0,0 +1,124 @@
+/**
+ * @author Kostiantyn Feniuk
+ */
+
+package com.apokalist.telegram_mini;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class RoomStreamTest {
+    private long now = 1_000_000; // Test clock, ms
+    private final RoomStream stream = new RoomStream(() -> now);
+
+    @Test
+    void inOrderIsNewAndRepeatIsDuplicate() {
+        assertEquals(RoomStream.Status.NEW, stream.accept("alice", 1));
+        assertEquals(RoomStream.Status.NEW, stream.accept("alice", 2));
+        assertEquals(RoomStream.Status.DUPLICATE, stream.accept("alice", 2));
+        assertEquals(RoomStream.Status.DUPLICATE, stream.accept("alice", 1));
+        assertTrue(stream.sendersWithGaps().isEmpty());
+    }
+
+    @Test
+    void firstMessageStartsStream() {
+        assertEquals(RoomStream.Status.NEW, stream.accept("alice", 7)); // Joined late, no gap
+        assertEquals(RoomStream.Status.NEW, stream.accept("alice", 8));
+        assertTrue(stream.missing("alice").isEmpty());
+    }
+
+    @Test
+    void gapIsReportedUntilFilled() {
+        stream.accept("alice", 1);
+        assertEquals(RoomStream.Status.GAP, stream.accept("alice", 4));
+
+        List<long[]> missing = stream.missing("alice");
+        assertEquals(1, missing.size());
+        assertArrayEquals(new long[]{2, 3}, missing.get(0));
+        assertEquals(List.of("alice"), stream.sendersWithGaps());
+
+        assertEquals(RoomStream.Status.NEW, stream.accept("alice", 3));
+        assertArrayEquals(new long[]{2, 2}, stream.missing("alice").get(0));
+        assertEquals(RoomStream.Status.NEW, stream.accept("alice", 2));
+        assertTrue(stream.missing("alice").isEmpty());
+        assertTrue(stream.sendersWithGaps().isEmpty());
+        assertEquals(RoomStream.Status.NEW, stream.accept("alice", 5)); // Watermark moved over 3 and 4
+    }
+
+    @Test
+    void outOfOrderDuplicatesAreDetected() {
+        stream.accept("alice", 1);
+        stream.accept("alice", 3);
+        assertEquals(RoomStream.Status.DUPLICATE, stream.accept("alice", 3)); // Above the gap
+        assertEquals(RoomStream.Status.NEW, stream.accept("alice", 2));
+        assertEquals(RoomStream.Status.DUPLICATE, stream.accept("alice", 2));
+    }
+
+    @Test
+    void sendersAreIndependent() {
+        stream.accept("alice", 1);
+        stream.accept("bob", 5);
+        assertEquals(RoomStream.Status.GAP, stream.accept("alice", 3));
+        assertEquals(RoomStream.Status.NEW, stream.accept("bob", 6));
+        assertEquals(List.of("alice"), stream.sendersWithGaps());
+    }
+
+    @Test
+    void gapIsGivenUpAfterTimeout() {
+        stream.accept("alice", 1);
+        stream.accept("alice", 3);
+
+        now += RoomStream.GAP_TIMEOUT_MS - 1;
+        assertEquals(1, stream.missing("alice").size());
+
+        now += 1;
+        assertTrue(stream.missing("alice").isEmpty());
+        assertTrue(stream.sendersWithGaps().isEmpty());
+        assertEquals(RoomStream.Status.DUPLICATE, stream.accept("alice", 2)); // Too late
+        assertEquals(RoomStream.Status.NEW, stream.accept("alice", 4));
+    }
+
+    @Test
+    void aheadIsBounded() {
+        stream.accept("alice", 1);
+        for (long seq = 3; seq <= RoomStream.MAX_AHEAD + 3; seq++) {
+            stream.accept("alice", seq); // Seq 2 never comes
+        }
+
+        assertTrue(stream.missing("alice").isEmpty()); // Gap skipped once too much waited above it
+        assertEquals(RoomStream.Status.NEW, stream.accept("alice", RoomStream.MAX_AHEAD + 4));
+    }
+
+    @Test
+    void expectFromReportsGapForNewSender() {
+        stream.expectFrom("alice", 10); // 10..14 dropped before the stream saw alice
+        assertEquals(RoomStream.Status.GAP, stream.accept("alice", 15));
+        assertArrayEquals(new long[]{10, 14}, stream.missing("alice").get(0));
+    }
+
+    @Test
+    void expectFromKeepsKnownSender() {
+        stream.accept("alice", 3);
+        stream.expectFrom("alice", 10);
+        assertEquals(RoomStream.Status.GAP, stream.accept("alice", 15));
+        assertArrayEquals(new long[]{4, 14}, stream.missing("alice").get(0));
+    }
+
+    @Test
+    void leastRecentSenderIsForgotten() {
+        stream.accept("alice", 1);
+        stream.accept("bob", 1);
+        for (int i = 0; i < RoomStream.MAX_SENDERS - 1; i++) {
+            stream.accept("sender" + i, 1);
+            if (i == 0) stream.accept("alice", 2); // Seen again, bob is now least recent
+        }
+
+        assertEquals(RoomStream.Status.DUPLICATE, stream.accept("alice", 2));
+        assertEquals(RoomStream.Status.NEW, stream.accept("bob", 1)); // Starts a new stream
+    }
+}